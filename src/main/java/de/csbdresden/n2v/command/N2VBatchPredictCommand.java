@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.command;
+
+import de.csbdresden.n2v.predict.N2VPrediction;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.modelzoo.ModelZooArchive;
+import net.imagej.modelzoo.ModelZooService;
+import net.imglib2.RandomAccessibleInterval;
+import org.scijava.Cancelable;
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.scijava.widget.FileWidget.DIRECTORY_STYLE;
+
+// Denoises all images of a folder in a pipeline: images are decoded by reader threads, predicted one after another
+// on the calling thread and written as TIFF by writer threads. The queues between the stages hold at most queueSize
+// images each, so only a few images are in memory at once. A failing image is logged and skipped.
+@Plugin( type = Command.class, menuPath = "Plugins>CSBDeep>N2V>N2V batch predict" )
+public class N2VBatchPredictCommand implements Command, Cancelable {
+
+	@Parameter(label = "Folder containing images to denoise", style = DIRECTORY_STYLE)
+	private File input;
+
+	@Parameter(label = "Folder for denoised images (TIFF)", style = DIRECTORY_STYLE)
+	private File output;
+
+	@Parameter(label = "Trained model file (.zip)")
+	private File modelFile;
+
+	@Parameter(label = "Axes of input images (subset of XYZB, B = batch)")
+	private String axes = "XY";
+
+	@Parameter(label = "Number of threads reading images", min = "1")
+	private int readerThreads = 2;
+
+	@Parameter(label = "Number of threads writing images", min = "1")
+	private int writerThreads = 2;
+
+	@Parameter(label = "Number of images queued between stages", min = "1")
+	private int queueSize = 4;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "number of denoised images")
+	private int numPredicted;
+
+	@Parameter(type = ItemIO.OUTPUT, label = "number of failed images")
+	private int numFailed;
+
+	@Parameter
+	private Context context;
+
+	@Parameter
+	private DatasetIOService datasetIOService;
+
+	@Parameter
+	private DatasetService datasetService;
+
+	@Parameter
+	private ModelZooService modelZooService;
+
+	@Parameter
+	private LogService logService;
+
+	@Parameter
+	private StatusService statusService;
+
+	private volatile boolean canceled;
+
+	private static class Read {
+		final File file;
+		final Future<Dataset> future;
+
+		Read(File file, Future<Dataset> future) {
+			this.file = file;
+			this.future = future;
+		}
+	}
+
+	@Override
+	public void run() {
+		if(input.equals(output)) {
+			logService.error("Please provide an output directory that is not the same as the input directory.");
+			return;
+		}
+		File[] files = input.listFiles(file -> file.isFile() && datasetIOService.canOpen(file.getAbsolutePath()));
+		if(files == null || files.length == 0) {
+			logService.warn("No images found in " + input.getAbsolutePath());
+			return;
+		}
+		Arrays.sort(files);
+		N2VPrediction prediction = new N2VPrediction(context);
+		try {
+			ModelZooArchive model = openModel();
+			if(model == null) return;
+			prediction.setTrainedModel(model);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if(!output.exists() && !output.mkdirs()) {
+			logService.error("Could not create " + output.getAbsolutePath());
+			return;
+		}
+		predict(prediction, files);
+	}
+
+	private void predict(N2VPrediction prediction, File[] files) {
+		long start = System.currentTimeMillis();
+		int queueSize = Math.max(this.queueSize, 1);
+		int writerThreads = Math.max(this.writerThreads, 1);
+		int readAhead = Math.max(readerThreads, 1) + queueSize;
+		ExecutorService readers = Executors.newFixedThreadPool(Math.max(readerThreads, 1), threads("N2V batch reader"));
+		ExecutorService writers = Executors.newFixedThreadPool(writerThreads, threads("N2V batch writer"));
+		// permits for predicted images which are written or wait for a writer
+		Semaphore writes = new Semaphore(writerThreads + queueSize);
+		Deque<Read> reads = new ArrayDeque<>();
+		AtomicInteger predicted = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		int next = 0;
+		try {
+			while(!canceled && (next < files.length || !reads.isEmpty())) {
+				while(next < files.length && reads.size() < readAhead) {
+					File file = files[next++];
+					reads.add(new Read(file, readers.submit(() -> datasetIOService.open(file.getAbsolutePath()))));
+				}
+				Read read = reads.poll();
+				RandomAccessibleInterval<?> result = predict(prediction, read);
+				if(result == null) {
+					failed.incrementAndGet();
+					showProgress(predicted.get() + failed.get(), files.length);
+					continue;
+				}
+				writes.acquire();
+				writers.submit(() -> {
+					try {
+						write(result, read.file);
+						predicted.incrementAndGet();
+					} catch (Exception e) {
+						logService.error("Could not write denoised " + read.file.getName() + ": " + e.getMessage());
+						failed.incrementAndGet();
+					} finally {
+						writes.release();
+						showProgress(predicted.get() + failed.get(), files.length);
+					}
+				});
+			}
+		} catch (InterruptedException e) {
+			canceled = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			reads.forEach(read -> read.future.cancel(true));
+			readers.shutdownNow();
+			writers.shutdown();
+			awaitTermination(writers);
+		}
+		numPredicted = predicted.get();
+		numFailed = failed.get();
+		statusService.clearStatus();
+		logService.info(String.format("N2V batch prediction: denoised %d of %d images in %.1f s, %d failed%s.",
+				numPredicted, files.length, (System.currentTimeMillis() - start) / 1000., numFailed, canceled ? ", canceled" : ""));
+	}
+
+	private RandomAccessibleInterval<?> predict(N2VPrediction prediction, Read read) throws InterruptedException {
+		Dataset dataset;
+		try {
+			dataset = read.future.get();
+		} catch (ExecutionException e) {
+			logService.error("Could not read " + read.file.getName() + ": " + e.getCause().getMessage());
+			return null;
+		}
+		try {
+			return prediction.predict((RandomAccessibleInterval) dataset.getImgPlus().getImg(), axes);
+		} catch (Exception e) {
+			logService.error("Could not denoise " + read.file.getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void write(RandomAccessibleInterval<?> result, File file) throws IOException {
+		String name = file.getName();
+		int extension = name.lastIndexOf('.');
+		File target = new File(output, (extension > 0 ? name.substring(0, extension) : name) + ".tif");
+		datasetIOService.save(datasetService.create((RandomAccessibleInterval) result), target.getAbsolutePath());
+	}
+
+	private ModelZooArchive openModel() throws IOException {
+		ModelZooArchive model = modelZooService.io().open(modelFile);
+		if(model.getSpecification().getFormatVersion().equals("0.1.0")) {
+			logService.error("Deprecated model format - please call Plugins > CSBDeep > N2V > Upgrade N2V model.");
+			return null;
+		}
+		return model;
+	}
+
+	private void showProgress(int done, int total) {
+		statusService.showStatus(done, total, "N2V batch prediction " + done + "/" + total);
+	}
+
+	private void awaitTermination(ExecutorService writers) {
+		try {
+			while(!writers.awaitTermination(1, TimeUnit.MINUTES)) {
+				logService.info("Waiting for denoised images to be written..");
+			}
+		} catch (InterruptedException e) {
+			writers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ThreadFactory threads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	@Override
+	public void cancel(String reason) {
+		canceled = true;
+	}
+
+	@Override
+	public String getCancelReason() {
+		return null;
+	}
+
+}
@@ -82,6 +82,15 @@ public class N2VTrainCommand implements Command, Cancelable {
 	@Parameter(label = "Neighborhood radius")
 	private int neighborhoodRadius = 5;
 
+	@Parameter(label = "Early stopping patience (validations, 0 = disabled)", min = "0")
+	private int earlyStoppingPatience = 0;
+
+	@Parameter(label = "Early stopping minimum loss improvement")
+	private float earlyStoppingMinDelta = 0;
+
+	@Parameter(label = "Restore weights with lowest validation loss on early stop")
+	private boolean restoreBestWeights = true;
+
 	@Parameter(type = ItemIO.OUTPUT, label = "Model from last training step")
 	private ModelZooArchive latestTrainedModel;
 
@@ -148,7 +157,8 @@ public class N2VTrainCommand implements Command, Cancelable {
 				.setStepsPerEpoch(numStepsPerEpoch)
 				.setBatchSize(batchSize)
 				.setPatchShape(patchShape)
-				.setNeighborhoodRadius(neighborhoodRadius));
+				.setNeighborhoodRadius(neighborhoodRadius)
+				.setEarlyStopping(earlyStoppingPatience, earlyStoppingMinDelta, restoreBestWeights));
 		try {
 			if(this.training.equals(validation)) {
 				System.out.println("Using 10% of training data for validation");
@@ -166,19 +176,18 @@ public class N2VTrainCommand implements Command, Cancelable {
 			return;
 		}
 		try {
-			File savedModel = n2v.output().exportLatestTrainedModel();
-			if(savedModel == null) return;
-			openSavedModels(n2v, savedModel);
+			File[] savedModels = n2v.output().exportTrainedModels();
+			if(savedModels == null) return;
+			openSavedModels(savedModels);
 			n2v.output().dispose();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void openSavedModels(N2VTraining training, File savedModel) throws IOException {
-		latestTrainedModel = modelZooService.io().open(savedModel);
-		savedModel = training.output().exportBestTrainedModel();
-		bestTrainedModel = modelZooService.io().open(savedModel);
+	private void openSavedModels(File[] savedModels) throws IOException {
+		latestTrainedModel = modelZooService.io().open(savedModels[0]);
+		bestTrainedModel = modelZooService.io().open(savedModels[1]);
 	}
 
 	@Override
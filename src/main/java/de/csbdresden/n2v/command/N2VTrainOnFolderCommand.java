@@ -73,6 +73,15 @@ public class N2VTrainOnFolderCommand implements Command, Cancelable {
 	@Parameter(label = "Neighborhood radius")
 	private int neighborhoodRadius = 5;
 
+	@Parameter(label = "Early stopping patience (validations, 0 = disabled)", min = "0")
+	private int earlyStoppingPatience = 0;
+
+	@Parameter(label = "Early stopping minimum loss improvement")
+	private float earlyStoppingMinDelta = 0;
+
+	@Parameter(label = "Restore weights with lowest validation loss on early stop")
+	private boolean restoreBestWeights = true;
+
 	@Parameter(type = ItemIO.OUTPUT, label = "model from last training step")
 	private ModelZooArchive latestTrainedModel;
 
@@ -96,7 +105,8 @@ public class N2VTrainOnFolderCommand implements Command, Cancelable {
 				.setStepsPerEpoch(numStepsPerEpoch)
 				.setBatchSize(batchSize)
 				.setPatchShape(patchShape)
-				.setNeighborhoodRadius(neighborhoodRadius));
+				.setNeighborhoodRadius(neighborhoodRadius)
+				.setEarlyStopping(earlyStoppingPatience, earlyStoppingMinDelta, restoreBestWeights));
 		try {
 			if(training.equals(validation)) {
 				System.out.println("Using 10% of training data for validation");
@@ -113,18 +123,17 @@ public class N2VTrainOnFolderCommand implements Command, Cancelable {
 			return;
 		}
 		try {
-			File savedModel = n2v.output().exportLatestTrainedModel();
-			if(savedModel == null) return;
-			openSavedModels(n2v, savedModel);
+			File[] savedModels = n2v.output().exportTrainedModels();
+			if(savedModels == null) return;
+			openSavedModels(savedModels);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void openSavedModels(N2VTraining training, File savedModel) throws IOException {
-		latestTrainedModel = modelZooService.io().open(savedModel);
-		savedModel = training.output().exportBestTrainedModel();
-		bestTrainedModel = modelZooService.io().open(savedModel);
+	private void openSavedModels(File[] savedModels) throws IOException {
+		latestTrainedModel = modelZooService.io().open(savedModels[0]);
+		bestTrainedModel = modelZooService.io().open(savedModels[1]);
 	}
 
 	@Override
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+
+class BatchPrefetcher {
+
+	// step counts the requested batches and keys the random stream of the batch
+	interface BatchFactory {
+		TrainingBatch create(int index, long step);
+	}
+
+	private final BatchFactory factory;
+	private final IntSupplier indices;
+	private final int depth;
+	private final ExecutorService pool;
+	private final Deque<Pending> pending = new ArrayDeque<>();
+	private long step;
+	private int lastIndex = -1;
+
+	private static class Pending {
+		final int index;
+		final long step;
+		Future<TrainingBatch> future;
+
+		Pending(int index, long step) {
+			this.index = index;
+			this.step = step;
+		}
+	}
+
+	BatchPrefetcher(BatchFactory factory, IntSupplier indices, int depth) {
+		this(factory, indices, depth, 0);
+	}
+
+	// starts with the given step, e.g. to continue a resumed training with the same random streams
+	BatchPrefetcher(BatchFactory factory, IntSupplier indices, int depth, long firstStep) {
+		this.factory = factory;
+		this.indices = indices;
+		this.depth = Math.max(0, depth);
+		this.pool = this.depth > 0 ? Executors.newFixedThreadPool(this.depth) : null;
+		this.step = firstStep;
+	}
+
+	// step of the next batch returned by next()
+	long nextStep() {
+		return step - pending.size();
+	}
+
+	// index of the next batch returned by next() if it is prefetched already, otherwise -1
+	int nextIndex() {
+		Pending next = pending.peek();
+		return next == null ? -1 : next.index;
+	}
+
+	// index of the batch last returned by next(), -1 before the first batch
+	int lastIndex() {
+		return lastIndex;
+	}
+
+	// returns null if the calling thread was interrupted while waiting
+	TrainingBatch next() {
+		if (pool == null) {
+			lastIndex = indices.getAsInt();
+			return factory.create(lastIndex, step++);
+		}
+		fill();
+		Pending next = pending.poll();
+		lastIndex = next.index;
+		fill();
+		try {
+			return next.future.get();
+		} catch (InterruptedException e) {
+			pending.addFirst(next);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// waits for the batches in flight, e.g. before shuffling the data at the end of an epoch, and creates them
+	// again afterwards, so they are sampled from the data as it is after the action
+	void pauseAndRun(Runnable action) {
+		for (Pending next : pending) {
+			try {
+				next.future.get().close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException | CancellationException ignored) {
+				// created again below
+			}
+		}
+		action.run();
+		for (Pending next : pending) {
+			submit(next);
+		}
+	}
+
+	void close() {
+		if (pool == null) return;
+		pool.shutdown();
+		for (Pending next : pending) {
+			try {
+				getUninterruptibly(next.future).close();
+			} catch (ExecutionException | CancellationException ignored) {
+			}
+		}
+		pending.clear();
+	}
+
+	// indices are drawn on the training thread so the batch order does not depend on the workers
+	private void fill() {
+		while (pending.size() < depth && !pool.isShutdown()) {
+			Pending next = new Pending(indices.getAsInt(), step++);
+			submit(next);
+			pending.add(next);
+		}
+	}
+
+	private void submit(Pending next) {
+		next.future = pool.submit(() -> factory.create(next.index, next.step));
+	}
+
+	static <V> V getUninterruptibly(Future<V> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+}
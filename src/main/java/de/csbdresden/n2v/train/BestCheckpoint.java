@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Keeps the checkpoint with the lowest validation loss as a snapshot of hard links to the files of the latest
+// checkpoint, so promoting a checkpoint does not copy the model. TensorFlow replaces the variable files of a
+// checkpoint instead of overwriting them, so the linked files keep their content when the latest checkpoint is
+// written again. Files which are rewritten in place (sample images, specification) are small and get copied.
+// Snapshots are reference counted, a replaced snapshot is deleted once no export uses it anymore.
+class BestCheckpoint {
+
+	private static final String variablesDir = "variables";
+	private static final String graphFile = "saved_model.pb";
+
+	private final File parent;
+	private final String name;
+	// number of references per snapshot directory, the current snapshot holds one itself
+	private final Map<File, Integer> references = new HashMap<>();
+	private File current;
+	private int generation = 0;
+
+	BestCheckpoint(File parent, String name) {
+		this.parent = parent;
+		this.name = name;
+	}
+
+	// the snapshot is built under a temporary name and renamed atomically before it replaces the current one
+	void promote(File checkpointDir) throws IOException {
+		int id;
+		synchronized (this) {
+			id = generation++;
+		}
+		File tmp = new File(parent, name + id + ".tmp");
+		File dir = new File(parent, name + id);
+		link(checkpointDir.toPath(), tmp.toPath());
+		Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		File old;
+		synchronized (this) {
+			old = current;
+			current = dir;
+			references.put(dir, 1);
+		}
+		if (old != null) release(old);
+	}
+
+	// returns the current snapshot directory or null, it is not deleted before it is released
+	synchronized File acquire() {
+		if (current == null) return null;
+		references.merge(current, 1, Integer::sum);
+		return current;
+	}
+
+	void release(File dir) {
+		synchronized (this) {
+			int count = references.merge(dir, -1, Integer::sum);
+			if (count > 0) return;
+			references.remove(dir);
+		}
+		delete(dir);
+	}
+
+	synchronized void dispose() {
+		references.keySet().forEach(BestCheckpoint::delete);
+		references.clear();
+		current = null;
+	}
+
+	static void link(Path source, Path target) throws IOException {
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path relative = source.relativize(file);
+				Path destination = target.resolve(relative.toString());
+				if (isReplacedOnWrite(relative)) {
+					try {
+						Files.createLink(destination, file);
+						return FileVisitResult.CONTINUE;
+					} catch (UnsupportedOperationException | IOException e) {
+						// file systems without hard links fall back to copying
+					}
+				}
+				Files.copy(file, destination, StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static boolean isReplacedOnWrite(Path relative) {
+		return relative.toString().equals(graphFile) || relative.getName(0).toString().equals(variablesDir);
+	}
+
+	static void delete(File dir) {
+		if (!dir.exists()) return;
+		try (Stream<Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
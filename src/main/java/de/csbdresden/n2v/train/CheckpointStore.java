@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Keeps snapshots of validated checkpoints in a directory. The snapshots link to the files of the latest checkpoint
+// like the best checkpoint does. The last keepLast validated checkpoints, the keepBest checkpoints with the lowest
+// validation loss and the last keepIntermediate checkpoints without validation are retained, all others are deleted.
+// If the snapshots still need more than maxBytes, the oldest ones are deleted as well, intermediate ones first and
+// never the best one. Files linked into several snapshots are counted once. The index file lists step, validation
+// loss and size of each snapshot, so a checkpoint can be picked without loading all of them. It is the reference for
+// the snapshots: a new snapshot gets its own directory, and replaced or evicted ones are deleted once the index
+// no longer lists them.
+class CheckpointStore {
+
+	static final String INDEX = "checkpoints.index";
+	private static final String PREFIX = "checkpoint-";
+
+	private final File directory;
+	private final int keepLast;
+	private final int keepBest;
+	private final int keepIntermediate;
+	private final long maxBytes;
+	private final List<Record> records = new ArrayList<>();
+
+	static class Record {
+		final String name;
+		final int step;
+		final float validationLoss;
+		final long bytes;
+
+		Record(String name, int step, float validationLoss, long bytes) {
+			this.name = name;
+			this.step = step;
+			this.validationLoss = validationLoss;
+			this.bytes = bytes;
+		}
+	}
+
+	// continues with the snapshots listed in an existing index of the directory, snapshots which are not listed
+	// were replaced or evicted before the previous run ended and are deleted
+	CheckpointStore(File directory, int keepLast, int keepBest, int keepIntermediate, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.keepLast = keepLast;
+		this.keepBest = keepBest;
+		this.keepIntermediate = keepIntermediate;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(directory.toPath());
+		Set<String> names = new HashSet<>();
+		for (Record record : readIndex(directory)) {
+			if (new File(directory, record.name).isDirectory()) {
+				records.add(record);
+				names.add(record.name);
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.isDirectory() && file.getName().startsWith(PREFIX) && !names.contains(file.getName())) BestCheckpoint.delete(file);
+		}
+	}
+
+	synchronized void add(File checkpointDir, int step, float validationLoss) throws IOException {
+		String name = newName(step);
+		File tmp = new File(directory, name + ".tmp");
+		BestCheckpoint.delete(tmp);
+		BestCheckpoint.link(checkpointDir.toPath(), tmp.toPath());
+		Files.move(tmp.toPath(), new File(directory, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		// a checkpoint of the same step replaces the previous one
+		List<Record> removed = records.stream().filter(record -> record.step == step).collect(Collectors.toList());
+		records.removeAll(removed);
+		records.add(new Record(name, step, validationLoss, size(new File(directory, name).toPath())));
+		removed.addAll(evict());
+		writeIndex();
+		for (Record record : removed) {
+			BestCheckpoint.delete(getDirectory(record));
+		}
+	}
+
+	// a snapshot replacing one of the same step gets a new directory, so the index always lists complete snapshots
+	private String newName(int step) {
+		String name = String.format("%s%09d", PREFIX, step);
+		for (int i = 1; new File(directory, name).exists() || new File(directory, name + ".tmp").exists(); i++) {
+			name = String.format("%s%09d-%d", PREFIX, step, i);
+		}
+		return name;
+	}
+
+	synchronized List<Record> getRecords() {
+		return new ArrayList<>(records);
+	}
+
+	File getDirectory(Record record) {
+		return new File(directory, record.name);
+	}
+
+	// checkpoints without validation loss (NaN) are not considered
+	synchronized Record best() {
+		return records.stream().filter(record -> !Float.isNaN(record.validationLoss))
+				.min(Comparator.comparingDouble(record -> record.validationLoss)).orElse(null);
+	}
+
+	// removes the records which are not retained and returns them, their snapshots are deleted by the caller
+	private List<Record> evict() throws IOException {
+		Set<Record> keep = new HashSet<>();
+		records.stream().filter(record -> !Float.isNaN(record.validationLoss))
+				.sorted(Comparator.comparingInt((Record record) -> record.step).reversed())
+				.limit(keepLast).forEach(keep::add);
+		records.stream().filter(record -> !Float.isNaN(record.validationLoss))
+				.sorted(Comparator.comparingDouble(record -> record.validationLoss))
+				.limit(keepBest).forEach(keep::add);
+		records.stream().filter(record -> Float.isNaN(record.validationLoss))
+				.sorted(Comparator.comparingInt((Record record) -> record.step).reversed())
+				.limit(keepIntermediate).forEach(keep::add);
+		List<Record> evicted = records.stream().filter(record -> !keep.contains(record)).collect(Collectors.toList());
+		records.removeAll(evicted);
+		if (maxBytes <= 0) return evicted;
+		Record best = best();
+		List<Record> oldestFirst = records.stream()
+				.sorted(Comparator.comparing((Record record) -> !Float.isNaN(record.validationLoss)).thenComparingInt(record -> record.step))
+				.collect(Collectors.toList());
+		for (Record record : oldestFirst) {
+			if (usedBytes() <= maxBytes) break;
+			if (record == best) continue;
+			records.remove(record);
+			evicted.add(record);
+		}
+		return evicted;
+	}
+
+	// size of the snapshots of all records, files linked into several snapshots are counted once
+	private long usedBytes() throws IOException {
+		Set<Object> counted = new HashSet<>();
+		long bytes = 0;
+		for (Record record : records) {
+			try (Stream<Path> paths = Files.walk(getDirectory(record).toPath())) {
+				for (Path path : (Iterable<Path>) paths::iterator) {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					if (!attributes.isRegularFile()) continue;
+					Object key = attributes.fileKey() != null ? attributes.fileKey() : path;
+					if (counted.add(key)) bytes += attributes.size();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	// the index is replaced atomically, so it always matches a consistent set of snapshots
+	private void writeIndex() throws IOException {
+		Path tmp = directory.toPath().resolve(INDEX + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			writer.write("# name\tstep\tvalidationLoss\tbytes");
+			writer.newLine();
+			for (Record record : records) {
+				writer.write(record.name + "\t" + record.step + "\t" + record.validationLoss + "\t" + record.bytes);
+				writer.newLine();
+			}
+		}
+		Files.move(tmp, directory.toPath().resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	static List<Record> readIndex(File directory) throws IOException {
+		List<Record> records = new ArrayList<>();
+		Path index = directory.toPath().resolve(INDEX);
+		if (!Files.exists(index)) return records;
+		for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] parts = line.split("\t");
+			records.add(new Record(parts[0], Integer.parseInt(parts[1]), Float.parseFloat(parts[2]), Long.parseLong(parts[3])));
+		}
+		return records;
+	}
+
+	private static long size(Path dir) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+		}
+	}
+
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+// Writes checkpoints on a background thread. The training thread only dumps the variables into a local staging
+// checkpoint, the writer restores them into a second session of the same graph and writes the checkpoint from there,
+// so training continues during slow disk I/O and every written checkpoint matches a single training step.
+class CheckpointWriter implements AutoCloseable {
+
+	static final int DEFAULT_QUEUE_SIZE = 2;
+
+	private static final Runnable STOP = () -> {};
+
+	private final Graph graph;
+	private final SessionThreads threads;
+	private final BlockingQueue<Runnable> queue;
+	private final Thread thread;
+	private final File stagingDirectory;
+	private Session snapshotSession;
+	private int numSnapshots = 0;
+	private volatile boolean closed = false;
+
+	// the snapshot session uses the same thread settings as the training session
+	CheckpointWriter(Graph graph, SessionThreads threads, int queueSize) throws IOException {
+		this.graph = graph;
+		this.threads = threads;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.stagingDirectory = Files.createTempDirectory("n2v-checkpoint").toFile();
+		this.thread = new Thread(this::run, "N2V checkpoint writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// snapshots the variables of the session and queues writing them, blocks while the queue is full
+	synchronized void save(Session sess, Consumer<Session> write) {
+		File prefix = new File(stagingDirectory, "snapshot" + numSnapshots++);
+		try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+			sess.runner().feed("save/Const", path).addTarget("save/control_dependency").run();
+		}
+		submit(() -> {
+			try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+				snapshotSession().runner().feed("save/Const", path).addTarget("save/restore_all").run();
+			} finally {
+				deleteSnapshot(prefix);
+			}
+			write.accept(snapshotSession());
+		});
+	}
+
+	// snapshots the variables of the session into a new directory (variables/variables) and queues the task which
+	// consumes the directory, it is deleted afterwards
+	synchronized void saveVariables(Session sess, Consumer<File> write) {
+		File dir = new File(stagingDirectory, "variables" + numSnapshots++);
+		File prefix = new File(new File(dir, "variables"), "variables");
+		prefix.getParentFile().mkdirs();
+		try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+			sess.runner().feed("save/Const", path).addTarget("save/control_dependency").run();
+		}
+		submit(() -> {
+			try {
+				write.accept(dir);
+			} finally {
+				BestCheckpoint.delete(dir);
+			}
+		});
+	}
+
+	// queues a task which has to run after the checkpoints queued so far are written
+	void submit(Runnable task) {
+		if (closed) task.run();
+		else putUninterruptibly(task);
+	}
+
+	// blocks until all queued checkpoints are written
+	void flush() {
+		if (closed || Thread.currentThread() == thread) return;
+		CountDownLatch done = new CountDownLatch(1);
+		putUninterruptibly(done::countDown);
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	// writes all pending checkpoints before returning, so the graph can be closed afterwards
+	@Override
+	public void close() {
+		if (closed) return;
+		flush();
+		closed = true;
+		putUninterruptibly(STOP);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		BestCheckpoint.delete(stagingDirectory);
+	}
+
+	private void run() {
+		while (true) {
+			Runnable task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (task == STOP) break;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		if (snapshotSession != null) snapshotSession.close();
+	}
+
+	private Session snapshotSession() {
+		if (snapshotSession == null) snapshotSession = threads.createSession(graph);
+		return snapshotSession;
+	}
+
+	private void putUninterruptibly(Runnable task) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(task);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void deleteSnapshot(File prefix) {
+		File[] files = stagingDirectory.listFiles((dir, name) -> name.startsWith(prefix.getName() + "."));
+		if (files == null) return;
+		for (File file : files) file.delete();
+	}
+
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+// Stops training if the validation loss did not improve by at least minDelta for patience validations
+public class EarlyStopping {
+
+	private final int patience;
+	private final float minDelta;
+	private final boolean restoreBestWeights;
+	private float best = Float.MAX_VALUE;
+	private int wait = 0;
+	private boolean hasBestWeights = false;
+
+	public EarlyStopping(int patience, float minDelta, boolean restoreBestWeights) {
+		this.patience = patience;
+		this.minDelta = minDelta;
+		this.restoreBestWeights = restoreBestWeights;
+	}
+
+	public void stopOnPlateau(N2VTraining training) {
+		float loss = training.output().getCurrentValidationLoss();
+		if(update(loss)) {
+			if(restoreBestWeights) training.saveBestWeights();
+			return;
+		}
+		if(!isPlateau()) return;
+		int epoch = (training.getStepsFinished() - 1) / training.config().getStepsPerEpoch() + 1;
+		System.out.println("Validation loss did not improve for " + wait + " validations, stopping training in epoch " + epoch);
+		training.setStoppedEpoch(epoch);
+		if(canRestoreBestWeights()) {
+			System.out.println("Restoring weights with validation loss " + best);
+			training.stopTrainingWithBestWeights(best);
+		} else {
+			training.stopTraining();
+		}
+	}
+
+	// returns true if the loss is the new best one and its weights have to be saved for restoring them,
+	// otherwise the validation is counted as not improving
+	boolean update(float loss) {
+		if(loss < best - minDelta) {
+			best = loss;
+			wait = 0;
+			hasBestWeights = restoreBestWeights;
+			return true;
+		}
+		wait += 1;
+		return false;
+	}
+
+	boolean isPlateau() {
+		return wait >= patience;
+	}
+
+	boolean canRestoreBestWeights() {
+		return restoreBestWeights && hasBestWeights;
+	}
+
+	float getBest() {
+		return best;
+	}
+
+	// the best weights of a resumed training are only restored if they improved after resuming
+	void saveState(TrainingState state) {
+		state.earlyStoppingBest = best;
+		state.earlyStoppingWait = wait;
+	}
+
+	void restoreState(TrainingState state) {
+		best = state.earlyStoppingBest;
+		wait = state.earlyStoppingWait;
+	}
+
+}
@@ -29,6 +29,8 @@
 package de.csbdresden.n2v.train;
 
 import de.csbdresden.n2v.ui.TrainingProgress;
+import de.csbdresden.n2v.util.PixelStatistics;
+import de.csbdresden.n2v.util.QuantileSketch;
 import io.scif.services.DatasetIOService;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
@@ -45,6 +47,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
 
 public class InputHandler {
 
@@ -60,6 +63,19 @@ public class InputHandler {
 	private final List< RandomAccessibleInterval< FloatType > > X = new ArrayList<>();
 	private final List< RandomAccessibleInterval< FloatType > > validationX = new ArrayList<>();
 
+	private final PixelStatistics trainingStatistics = new PixelStatistics();
+	private final QuantileSketch trainingQuantiles = new QuantileSketch();
+
+	private int numTiledImages = 0;
+
+	private enum Split { TRAINING, VALIDATION, TRAINING_AND_VALIDATION }
+
+	// keeps the tiles mapped from the cache files while the training data is used
+	private TileCache tileCache;
+	// the mapped tiles, if all training or validation tiles were loaded from one cache file
+	private TileArena mappedX;
+	private TileArena mappedValidationX;
+
 	public InputHandler(Context context, N2VConfig config) {
 		this.config = config;
 		context.inject(this);
@@ -75,24 +91,35 @@ public class InputHandler {
 		logService.info( "Tile training and validation data.." );
 		if(dialog != null) dialog.setCurrentTaskMessage("Tiling training and validation data" );
 
-		List< RandomAccessibleInterval< FloatType > > tiles = N2VDataGenerator.createTiles( training, config.getTrainDimensions(), config.getTrainPatchShape(), logService );
+		List< RandomAccessibleInterval< FloatType > > tiles = N2VDataGenerator.createTiles( training, config.getTrainDimensions(), config.getTrainPatchShape(), nextTilesRandom(), logService );
 
-		int trainEnd = (int) (tiles.size() * (1 - validationAmount));
+		int trainEnd = trainingEnd(tiles.size(), validationAmount);
 		for (int i = 0; i < trainEnd; i++) {
 			//TODO do I need to copy here?
 			X.add( tiles.get( i ) );
 		}
-		int valEnd = tiles.size()-trainEnd % 2 == 1 ? tiles.size() - 1 : tiles.size();
+		addTrainingStatistics(tiles.subList(0, trainEnd));
+		int valEnd = validationEnd(tiles.size(), trainEnd);
 		for (int i = trainEnd; i < valEnd; i++) {
 			//TODO do I need to copy here?
 			validationX.add( tiles.get( i ) );
 		}
 	}
 
+	// the first tiles of each shuffled image are used for training, the remaining ones for validation
+	private static int trainingEnd(int numTiles, double validationAmount) {
+		return (int) (numTiles * (1 - validationAmount));
+	}
+
+	private static int validationEnd(int numTiles, int trainEnd) {
+		return numTiles-trainEnd % 2 == 1 ? numTiles - 1 : numTiles;
+	}
+
 	public void addTrainingAndValidationData(File trainingFolder, double validationAmount) {
 
 		if(trainingFolder.isDirectory()) {
 			File[] imgs = trainingFolder.listFiles();
+			if(addFromCache(imgs, Split.TRAINING_AND_VALIDATION, validationAmount)) return;
 			for (File file : imgs) {
 				if (Thread.interrupted()) return;
 				try {
@@ -105,6 +132,15 @@ public class InputHandler {
 		}
 	}
 
+	private void addTrainingStatistics(List<RandomAccessibleInterval<FloatType>> tiles) {
+		trainingStatistics.add(PixelStatistics.of(tiles));
+		if(config.isPercentileNormalization()) trainingQuantiles.add(QuantileSketch.of(tiles));
+	}
+
+	private SplittableRandom nextTilesRandom() {
+		return N2VRandom.stream(config.getSeed(), N2VRandom.TILES, numTiledImages++);
+	}
+
 	public static <T extends RealType<T>> RandomAccessibleInterval<FloatType> convertToFloat(RandomAccessibleInterval<T> img) {
 		return Converters.convert(img, new RealFloatConverter<T>(), new FloatType());
 	}
@@ -118,13 +154,16 @@ public class InputHandler {
 
 		logService.info("Training image dimensions: " + Arrays.toString(Intervals.dimensionsAsIntArray(training)));
 
-		X.addAll(N2VDataGenerator.createTiles( training, config.getTrainDimensions(), config.getTrainPatchShape(), logService ));
+		List< RandomAccessibleInterval< FloatType > > tiles = N2VDataGenerator.createTiles( training, config.getTrainDimensions(), config.getTrainPatchShape(), nextTilesRandom(), logService );
+		X.addAll(tiles);
+		addTrainingStatistics(tiles);
 	}
 
 	public void addTrainingData(File trainingFolder) {
 
 		if(trainingFolder.isDirectory()) {
 			File[] imgs = trainingFolder.listFiles();
+			if(addFromCache(imgs, Split.TRAINING, 0)) return;
 			for (File file : imgs) {
 				if (Thread.interrupted()) return;
 				try {
@@ -146,13 +185,14 @@ public class InputHandler {
 
 		logService.info("Validation image dimensions: " + Arrays.toString(Intervals.dimensionsAsIntArray(validation)));
 
-		validationX.addAll(N2VDataGenerator.createTiles( validation, config.getTrainDimensions(), config.getTrainPatchShape(), logService ));
+		validationX.addAll(N2VDataGenerator.createTiles( validation, config.getTrainDimensions(), config.getTrainPatchShape(), nextTilesRandom(), logService ));
 	}
 
 	public void addValidationData(File trainingFolder) {
 
 		if(trainingFolder.isDirectory()) {
 			File[] imgs = trainingFolder.listFiles();
+			if(addFromCache(imgs, Split.VALIDATION, 0)) return;
 			for (File file : imgs) {
 				if (Thread.interrupted()) return;
 				try {
@@ -165,6 +205,105 @@ public class InputHandler {
 		}
 	}
 
+	// Adds the tiles of the images through the tile cache, returns false if caching is disabled or fails.
+	// The cache stores the unshuffled tiles of each image, they are shuffled with the random stream of the image
+	// and split here, so the result is the same as if the images were tiled directly.
+	private boolean addFromCache(File[] imgs, Split split, double validationAmount) {
+		if(config.getTileCacheDirectory() == null) return false;
+		TileCache cache = tileCache();
+		String cacheKey;
+		try {
+			cacheKey = TileCache.key(imgs, config.getTrainDimensions(), config.getTrainPatchShape());
+		} catch (IOException e) {
+			logService.warn("Could not compute tile cache key: " + e.getMessage());
+			return false;
+		}
+		File file = cache.getFile(cacheKey);
+		try {
+			TileCache.Entry entry = cache.read(cacheKey);
+			if(entry == null) {
+				if(!writeToCache(cache, cacheKey, imgs)) return false;
+				entry = cache.read(cacheKey);
+				if(entry == null) return false;
+			} else {
+				if(dialog != null) dialog.setCurrentTaskMessage("Loading cached tiles" );
+				logService.info("Loading cached tiles from " + file.getAbsolutePath());
+			}
+			addCachedTiles(entry, split, validationAmount);
+			return true;
+		} catch (IOException e) {
+			logService.warn("Could not use tile cache " + file.getAbsolutePath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean writeToCache(TileCache cache, String cacheKey, File[] imgs) throws IOException {
+		if(dialog != null) dialog.setCurrentTaskMessage("Tiling data" );
+		List<RandomAccessibleInterval<FloatType>> tiles = new ArrayList<>();
+		List<Integer> tilesPerImage = new ArrayList<>();
+		for (File file : imgs) {
+			if (Thread.interrupted()) return false;
+			try {
+				RandomAccessibleInterval img = datasetIOService.open(file.getAbsolutePath()).getImgPlus().getImg();
+				List<RandomAccessibleInterval<FloatType>> imgTiles = N2VDataGenerator.createTiles(convertToFloat(img), config.getTrainDimensions(), config.getTrainPatchShape(), logService);
+				tiles.addAll(imgTiles);
+				tilesPerImage.add(imgTiles.size());
+			} catch (IOException e) {
+				logService.warn("Could not load " + file.getAbsolutePath() + " as image");
+			}
+		}
+		cache.write(cacheKey, tilesPerImage.stream().mapToInt(Integer::intValue).toArray(), tiles);
+		logService.info("Stored " + tiles.size() + " tiles in " + cache.getFile(cacheKey).getAbsolutePath());
+		return true;
+	}
+
+	private void addCachedTiles(TileCache.Entry entry, Split split, double validationAmount) {
+		int[] training = new int[entry.tiles.numTiles()];
+		int[] validation = new int[entry.tiles.numTiles()];
+		int numTraining = 0;
+		int numValidation = 0;
+		int firstTile = 0;
+		for (int numTiles : entry.tilesPerImage) {
+			int[] tiles = new int[numTiles];
+			for (int i = 0; i < numTiles; i++) {
+				tiles[i] = firstTile + i;
+			}
+			firstTile += numTiles;
+			N2VRandom.shuffle(tiles, nextTilesRandom());
+			int trainEnd = split == Split.TRAINING ? numTiles : split == Split.VALIDATION ? 0 : trainingEnd(numTiles, validationAmount);
+			int valEnd = split == Split.TRAINING_AND_VALIDATION ? validationEnd(numTiles, trainEnd) : numTiles;
+			for (int i = 0; i < trainEnd; i++) {
+				training[numTraining++] = tiles[i];
+			}
+			for (int i = trainEnd; i < valEnd; i++) {
+				validation[numValidation++] = tiles[i];
+			}
+		}
+		TileArena trainingTiles = entry.tiles.select(Arrays.copyOf(training, numTraining));
+		TileArena validationTiles = entry.tiles.select(Arrays.copyOf(validation, numValidation));
+		mappedX = X.isEmpty() ? trainingTiles : null;
+		mappedValidationX = validationX.isEmpty() ? validationTiles : null;
+		List<RandomAccessibleInterval<FloatType>> trainingViews = views(trainingTiles);
+		X.addAll(trainingViews);
+		validationX.addAll(views(validationTiles));
+		if(!trainingViews.isEmpty()) addTrainingStatistics(trainingViews);
+		logService.info("Using " + numTraining + " training and " + numValidation + " validation tiles of "
+				+ entry.tilesPerImage.length + " cached images");
+	}
+
+	private static List<RandomAccessibleInterval<FloatType>> views(TileArena tiles) {
+		List<RandomAccessibleInterval<FloatType>> res = new ArrayList<>();
+		for (int i = 0; i < tiles.numTiles(); i++) {
+			res.add(tiles.view(i));
+		}
+		return res;
+	}
+
+	private TileCache tileCache() {
+		if(tileCache == null) tileCache = new TileCache(config.getTileCacheDirectory(), config.getTileCacheMaxBytes());
+		return tileCache;
+	}
+
 	public List<RandomAccessibleInterval<FloatType>> getX() {
 		return X;
 	}
@@ -172,4 +311,24 @@ public class InputHandler {
 	public List<RandomAccessibleInterval<FloatType>> getValidationX() {
 		return validationX;
 	}
+
+	// returns null unless all training tiles are mapped from the tile cache
+	TileArena getMappedX() {
+		return mappedX != null && mappedX.numTiles() == X.size() ? mappedX : null;
+	}
+
+	// returns null unless all validation tiles are mapped from the tile cache
+	TileArena getMappedValidationX() {
+		return mappedValidationX != null && mappedValidationX.numTiles() == validationX.size() ? mappedValidationX : null;
+	}
+
+	// mean and variance of the raw pixels of all training tiles, updated whenever tiles are added
+	public PixelStatistics getTrainingStatistics() {
+		return trainingStatistics;
+	}
+
+	// approximate quantiles of the raw pixels of all training tiles, only filled if percentile normalization is enabled
+	public QuantileSketch getTrainingQuantiles() {
+		return trainingQuantiles;
+	}
 }
@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes model archives from checkpoint directories. Several archives, e.g. of the latest and the best model,
+// are written at the same time, and the nested SavedModel archive of each one is compressed while the other
+// entries are added. Files are streamed into the archives, nothing is kept after an export.
+class ModelArchiveWriter {
+
+	private static final String graphFile = "saved_model.pb";
+	private static final String variablesDir = "variables";
+
+	private final boolean compress;
+
+	static class Archive {
+		final File checkpointDir;
+		final String bundleName;
+		final String specName;
+		final byte[] spec;
+		final File target;
+
+		Archive(File checkpointDir, String bundleName, String specName, byte[] spec, File target) {
+			this.checkpointDir = checkpointDir;
+			this.bundleName = bundleName;
+			this.specName = specName;
+			this.spec = spec;
+			this.target = target;
+		}
+	}
+
+	private interface Source {
+		InputStream open() throws IOException;
+	}
+
+	ModelArchiveWriter(boolean compress) {
+		this.compress = compress;
+	}
+
+	void write(File checkpointDir, String bundleName, String specName, byte[] spec, File target) throws IOException {
+		write(new Archive(checkpointDir, bundleName, specName, spec, target));
+	}
+
+	void write(Archive... archives) throws IOException {
+		if (archives.length == 1) {
+			write(archives[0]);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(archives.length);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Archive archive : archives) {
+				futures.add(pool.submit(() -> {
+					write(archive);
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) get(future);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	// the SavedModel files (graph and variables) are packed into a nested archive if the bundle name is a zip file,
+	// all other files of the checkpoint directory are added as they are, next to the given specification
+	private void write(Archive archive) throws IOException {
+		Path dir = archive.checkpointDir.toPath();
+		boolean nested = archive.bundleName != null && archive.bundleName.endsWith(".zip");
+		List<Path> paths;
+		try (Stream<Path> files = Files.walk(dir)) {
+			paths = files.filter(path -> !path.equals(dir)).sorted().collect(Collectors.toList());
+		}
+		List<Path> bundlePaths = new ArrayList<>();
+		List<Path> archivePaths = new ArrayList<>();
+		for (Path path : paths) {
+			String name = name(dir, path);
+			if (name.equals(archive.specName) || name.equals(archive.bundleName)) continue;
+			boolean inBundle = name.equals(graphFile) || name.equals(variablesDir) || name.startsWith(variablesDir + "/");
+			(nested && inBundle ? bundlePaths : archivePaths).add(path);
+		}
+		File bundle = nested ? File.createTempFile("bundle-", ".zip", archive.target.getAbsoluteFile().getParentFile()) : null;
+		try {
+			Future<?> bundleDone = null;
+			if (nested) {
+				bundleDone = ForkJoinPool.commonPool().submit(() -> {
+					try (ZipOutputStream out = open(bundle)) {
+						for (Path path : bundlePaths) addFile(out, dir, path);
+					}
+					return null;
+				});
+			}
+			try (ZipOutputStream out = open(archive.target)) {
+				for (Path path : archivePaths) addFile(out, dir, path);
+				byte[] spec = archive.spec;
+				add(out, archive.specName, System.currentTimeMillis(), () -> new ByteArrayInputStream(spec), compress);
+				if (nested) {
+					get(bundleDone);
+					// the bundle entries are compressed already
+					Path bundlePath = bundle.toPath();
+					add(out, archive.bundleName, System.currentTimeMillis(), () -> Files.newInputStream(bundlePath), false);
+				}
+			} finally {
+				// the bundle is not deleted while it is written
+				awaitQuietly(bundleDone);
+			}
+		} finally {
+			if (bundle != null) bundle.delete();
+		}
+	}
+
+	private static ZipOutputStream open(File file) throws IOException {
+		return new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	}
+
+	private void addFile(ZipOutputStream out, Path dir, Path path) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long time = attributes.lastModifiedTime().toMillis();
+		if (attributes.isDirectory()) {
+			add(out, name(dir, path) + "/", time, () -> new ByteArrayInputStream(new byte[0]), false);
+			return;
+		}
+		add(out, name(dir, path), time, () -> Files.newInputStream(path), compress);
+	}
+
+	// stored entries are read twice, their size and checksum have to be written before the data
+	private static void add(ZipOutputStream out, String name, long time, Source source, boolean deflate) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setTime(time);
+		if (deflate) {
+			entry.setMethod(ZipEntry.DEFLATED);
+		} else {
+			CRC32 crc = new CRC32();
+			long size = copy(source, null, crc);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		copy(source, out, null);
+		out.closeEntry();
+	}
+
+	private static long copy(Source source, ZipOutputStream out, CRC32 crc) throws IOException {
+		long size = 0;
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = source.open()) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				if (out != null) out.write(buffer, 0, n);
+				if (crc != null) crc.update(buffer, 0, n);
+				size += n;
+			}
+		}
+		return size;
+	}
+
+	private static String name(Path dir, Path path) {
+		return dir.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	private static void awaitQuietly(Future<?> future) {
+		if (future == null) return;
+		try {
+			BatchPrefetcher.getUninterruptibly(future);
+		} catch (ExecutionException | RuntimeException ignored) {
+		}
+	}
+
+	private static <V> V get(Future<V> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Writing the model archive was interrupted.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+}
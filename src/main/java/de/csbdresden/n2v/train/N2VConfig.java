@@ -28,6 +28,8 @@
  */
 package de.csbdresden.n2v.train;
 
+import java.io.File;
+
 public class N2VConfig {
 	private int numEpochs = 300;
 	private int trainBatchSize = 180;
@@ -39,6 +41,36 @@ public class N2VConfig {
 
 	private int[] maskSpan = new int[]{0, 0};
 	private int networkDepth = 4;
+	private int prefetchDepth = 2;
+	private long seed = N2VRandom.randomSeed();
+	private int numDataThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private ValueManipulator valueManipulator = ValueManipulator.UNIFORM_WITH_CP;
+	private boolean storeTilesOffHeap = false;
+	private File tileCacheDirectory = null;
+	private long tileCacheMaxBytes = 10L * 1024 * 1024 * 1024;
+	private boolean normalizeLazily = false;
+	private boolean percentileNormalization = false;
+	private double percentileLow = 1;
+	private double percentileHigh = 99.8;
+	private int sessionIntraOpThreads = 0;
+	private int sessionInterOpThreads = 0;
+	private boolean autotuneSessionThreads = false;
+	private boolean autotuneBatchAndPatchSize = false;
+	private long memoryBudget = 0;
+	private int validationInterval = 1;
+	private int validationStepInterval = 0;
+	private int numValidationBatches = 0;
+	private int earlyStoppingPatience = 0;
+	private float earlyStoppingMinDelta = 0;
+	private boolean restoreBestWeights = true;
+	private boolean compressModelArchives = true;
+	private File checkpointDirectory = null;
+	private int keepLastCheckpoints = 3;
+	private int keepBestCheckpoints = 1;
+	private int keepIntermediateCheckpoints = 1;
+	private long maxCheckpointBytes = 0;
+	private int checkpointStepInterval = 0;
+	private int checkpointMinuteInterval = 0;
 
 	public N2VConfig setStepsPerEpoch(final int steps) {
 		stepsPerEpoch = steps;
@@ -80,6 +112,157 @@ public class N2VConfig {
 		return this;
 	}
 
+	public N2VConfig setPrefetchDepth(int prefetchDepth) {
+		this.prefetchDepth = prefetchDepth;
+		return this;
+	}
+
+	public N2VConfig setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	// threads sampling the training batches, by default half of the cores, the other half is left to TensorFlow
+	public N2VConfig setNumDataThreads(int numDataThreads) {
+		this.numDataThreads = numDataThreads;
+		return this;
+	}
+
+	public N2VConfig setValueManipulator(ValueManipulator valueManipulator) {
+		this.valueManipulator = valueManipulator;
+		return this;
+	}
+
+	// copy the normalized tiles into one contiguous buffer outside of the JVM heap for patch sampling
+	public N2VConfig setStoreTilesOffHeap(boolean storeTilesOffHeap) {
+		this.storeTilesOffHeap = storeTilesOffHeap;
+		return this;
+	}
+
+	// keep the tiles raw and normalize the pixels while patches are sampled from them
+	public N2VConfig setNormalizeLazily(boolean normalizeLazily) {
+		this.normalizeLazily = normalizeLazily;
+		return this;
+	}
+
+	// map the percentiles (0 - 100) of the training data to 0 and 1 instead of normalizing by mean and standard deviation
+	public N2VConfig setPercentileNormalization(double low, double high) {
+		this.percentileNormalization = true;
+		this.percentileLow = low;
+		this.percentileHigh = high;
+		return this;
+	}
+
+	// thread pool sizes of the TensorFlow session, 0 uses the TensorFlow default
+	public N2VConfig setSessionThreads(int intraOpThreads, int interOpThreads) {
+		this.sessionIntraOpThreads = intraOpThreads;
+		this.sessionInterOpThreads = interOpThreads;
+		return this;
+	}
+
+	// time a few training steps with different session thread settings before training and keep the fastest
+	public N2VConfig setAutotuneSessionThreads(boolean autotuneSessionThreads) {
+		this.autotuneSessionThreads = autotuneSessionThreads;
+		return this;
+	}
+
+	// time a few training steps with halved and doubled batch sizes and patch shapes before training and keep the
+	// setting with the highest pixel throughput which fits into the memory budget
+	public N2VConfig setAutotuneBatchAndPatchSize(boolean autotuneBatchAndPatchSize) {
+		this.autotuneBatchAndPatchSize = autotuneBatchAndPatchSize;
+		return this;
+	}
+
+	// peak resident memory of the process in bytes allowed by the batch and patch size autotuner, 0 means no limit
+	public N2VConfig setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		return this;
+	}
+
+	// validate after every n-th epoch, at least 1
+	public N2VConfig setValidationInterval(int epochs) {
+		if(epochs < 1) throw new IllegalArgumentException("The validation interval has to be at least one epoch, got " + epochs + ".");
+		this.validationInterval = epochs;
+		return this;
+	}
+
+	// validate after every n-th training step instead of after epochs, 0 disables it
+	public N2VConfig setValidationStepInterval(int steps) {
+		this.validationStepInterval = steps;
+		return this;
+	}
+
+	// validate on a fixed random subset of the validation batches, 0 uses all of them.
+	// The last validation after training always uses all batches.
+	public N2VConfig setNumValidationBatches(int numValidationBatches) {
+		this.numValidationBatches = numValidationBatches;
+		return this;
+	}
+
+	// stop training if the validation loss did not decrease by more than minDelta for patience validations,
+	// a patience of 0 disables early stopping. The weights with the lowest validation loss are restored on stop.
+	public N2VConfig setEarlyStopping(int patience, float minDelta) {
+		this.earlyStoppingPatience = patience;
+		this.earlyStoppingMinDelta = minDelta;
+		return this;
+	}
+
+	// like setEarlyStopping(patience, minDelta), restoreBestWeights false keeps the weights of the last step
+	public N2VConfig setEarlyStopping(int patience, float minDelta, boolean restoreBestWeights) {
+		this.earlyStoppingPatience = patience;
+		this.earlyStoppingMinDelta = minDelta;
+		this.restoreBestWeights = restoreBestWeights;
+		return this;
+	}
+
+	// false stores the entries of exported model archives without compression, which is faster for large models
+	public N2VConfig setCompressModelArchives(boolean compressModelArchives) {
+		this.compressModelArchives = compressModelArchives;
+		return this;
+	}
+
+	// validated checkpoints are kept in this directory next to an index with their steps and validation losses,
+	// null keeps only the latest and the best checkpoint in the temporary directory
+	public N2VConfig setCheckpointDirectory(File checkpointDirectory) {
+		this.checkpointDirectory = checkpointDirectory;
+		return this;
+	}
+
+	// keep the last keepLast validated and the keepBest checkpoints with the lowest validation loss in the checkpoint
+	// directory, older ones are deleted if all of them need more than maxBytes, 0 means no limit
+	public N2VConfig setCheckpointRetention(int keepLast, int keepBest, long maxBytes) {
+		this.keepLastCheckpoints = keepLast;
+		this.keepBestCheckpoints = keepBest;
+		this.maxCheckpointBytes = maxBytes;
+		return this;
+	}
+
+	// save the variables and the training state every n steps and every m minutes during an epoch, 0 disables it.
+	// They are kept in the checkpoint directory, or next to the latest checkpoint if no directory is set.
+	public N2VConfig setCheckpointInterval(int steps, int minutes) {
+		this.checkpointStepInterval = steps;
+		this.checkpointMinuteInterval = minutes;
+		return this;
+	}
+
+	// keep the last n intermediate checkpoints, they are retained separately and do not replace validated ones
+	public N2VConfig setKeepIntermediateCheckpoints(int keepIntermediateCheckpoints) {
+		this.keepIntermediateCheckpoints = keepIntermediateCheckpoints;
+		return this;
+	}
+
+	// tiles generated from folders are stored in this directory and reused if the same folder is loaded again
+	public N2VConfig setTileCacheDirectory(File tileCacheDirectory) {
+		this.tileCacheDirectory = tileCacheDirectory;
+		return this;
+	}
+
+	// the least recently used files of the tile cache directory are deleted when it grows beyond this size
+	public N2VConfig setTileCacheMaxBytes(long tileCacheMaxBytes) {
+		this.tileCacheMaxBytes = tileCacheMaxBytes;
+		return this;
+	}
+
 	public int getTrainDimensions() {
 		return trainDimensions;
 	}
@@ -115,4 +298,124 @@ public class N2VConfig {
 	public int getNetworkDepth() {
 		return networkDepth;
 	}
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getNumDataThreads() {
+		return numDataThreads;
+	}
+
+	public ValueManipulator getValueManipulator() {
+		return valueManipulator;
+	}
+
+	public boolean isStoreTilesOffHeap() {
+		return storeTilesOffHeap;
+	}
+
+	public File getTileCacheDirectory() {
+		return tileCacheDirectory;
+	}
+
+	public long getTileCacheMaxBytes() {
+		return tileCacheMaxBytes;
+	}
+
+	public boolean isNormalizeLazily() {
+		return normalizeLazily;
+	}
+
+	public boolean isPercentileNormalization() {
+		return percentileNormalization;
+	}
+
+	public double getPercentileLow() {
+		return percentileLow;
+	}
+
+	public double getPercentileHigh() {
+		return percentileHigh;
+	}
+
+	public int getSessionIntraOpThreads() {
+		return sessionIntraOpThreads;
+	}
+
+	public int getSessionInterOpThreads() {
+		return sessionInterOpThreads;
+	}
+
+	public boolean isAutotuneSessionThreads() {
+		return autotuneSessionThreads;
+	}
+
+	public boolean isAutotuneBatchAndPatchSize() {
+		return autotuneBatchAndPatchSize;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public int getValidationInterval() {
+		return validationInterval;
+	}
+
+	public int getValidationStepInterval() {
+		return validationStepInterval;
+	}
+
+	public int getNumValidationBatches() {
+		return numValidationBatches;
+	}
+
+	public int getEarlyStoppingPatience() {
+		return earlyStoppingPatience;
+	}
+
+	public float getEarlyStoppingMinDelta() {
+		return earlyStoppingMinDelta;
+	}
+
+	public boolean isRestoreBestWeights() {
+		return restoreBestWeights;
+	}
+
+	public boolean isCompressModelArchives() {
+		return compressModelArchives;
+	}
+
+	public File getCheckpointDirectory() {
+		return checkpointDirectory;
+	}
+
+	public int getKeepLastCheckpoints() {
+		return keepLastCheckpoints;
+	}
+
+	public int getKeepBestCheckpoints() {
+		return keepBestCheckpoints;
+	}
+
+	public int getKeepIntermediateCheckpoints() {
+		return keepIntermediateCheckpoints;
+	}
+
+	public long getMaxCheckpointBytes() {
+		return maxCheckpointBytes;
+	}
+
+	public int getCheckpointStepInterval() {
+		return checkpointStepInterval;
+	}
+
+	public int getCheckpointMinuteInterval() {
+		return checkpointMinuteInterval;
+	}
 }
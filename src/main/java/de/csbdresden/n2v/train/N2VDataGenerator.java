@@ -40,18 +40,22 @@ import org.scijava.log.Logger;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
 
 public class N2VDataGenerator {
 
 	public static <T extends RealType<T>> List<RandomAccessibleInterval<T>> generateBatchesFromList(List<RandomAccessibleInterval<T>> data, Interval shape) {
+		return generateBatchesFromList(data, shape, new SplittableRandom());
+	}
+
+	public static <T extends RealType<T>> List<RandomAccessibleInterval<T>> generateBatchesFromList(List<RandomAccessibleInterval<T>> data, Interval shape, SplittableRandom random) {
 
 		List<RandomAccessibleInterval<T>> res = new ArrayList<>();
 
 		data.forEach(img -> res.addAll(generateBatches(img, shape)));
 
-		Collections.shuffle(res);
+		N2VRandom.shuffle(res, random);
 
 		return res;
 
@@ -63,12 +67,13 @@ public class N2VDataGenerator {
 
 	}
 
-	static <T extends RealType<T> & NativeType<T>> void augment(List<RandomAccessibleInterval<T>> tiles) {
-		if(tiles.get(0).dimension(0) == tiles.get(0).dimension(1)) {
-			//share in XY
-			augmentBatches(tiles);
-		}
-//		Collections.shuffle(patches);
+	// the rotations of augmentBatches are only possible for tiles which are square in XY,
+	// N2VDataWrapper applies them while sampling patches
+	static <T extends RealType<T>> boolean isAugmentable(List<RandomAccessibleInterval<T>> tiles) {
+		return !tiles.isEmpty() && tiles.get(0).dimension(0) == tiles.get(0).dimension(1);
+	}
+
+	static <T extends RealType<T> & NativeType<T>> void expandDimensions(List<RandomAccessibleInterval<T>> tiles) {
 		for (int i = 0; i < tiles.size(); i++) {
 			RandomAccessibleInterval<T> patch = tiles.get(i);
 			RandomAccessibleInterval<T> rai = Views.addDimension(patch, 0, 0);
@@ -164,6 +169,13 @@ public class N2VDataGenerator {
 		batches.addAll(augmented);
 	}
 
+	static List< RandomAccessibleInterval<FloatType> > createTiles(RandomAccessibleInterval< FloatType > inputRAI, int trainDimensions, long patchShape, SplittableRandom random, Logger logger ) {
+		List< RandomAccessibleInterval< FloatType > > tiles = createTiles( inputRAI, trainDimensions, patchShape, logger );
+		N2VRandom.shuffle( tiles, random );
+		return tiles;
+	}
+
+	// the tiles in the order they are extracted, they only depend on the image and the tiling parameters, not on the seed
 	static List< RandomAccessibleInterval<FloatType> > createTiles(RandomAccessibleInterval< FloatType > inputRAI, int trainDimensions, long patchShape, Logger logger ) {
 
 		long superPatchShape = getSmallestInputDim(inputRAI, trainDimensions);
@@ -173,10 +185,8 @@ public class N2VDataGenerator {
 		Arrays.fill(batchShapeData, superPatchShape);
 		FinalInterval batchShape = new FinalInterval(batchShapeData);
 //		logger.info( "Creating tiles of size " + Arrays.toString(Intervals.dimensionsAsIntArray(batchShape)) + ".." );
-		List< RandomAccessibleInterval< FloatType > > data = new ArrayList<>();
-		data.add( inputRAI );
-		List< RandomAccessibleInterval< FloatType > > tiles = N2VDataGenerator.generateBatchesFromList(
-				data,
+		List< RandomAccessibleInterval< FloatType > > tiles = N2VDataGenerator.generateBatches(
+				inputRAI,
 				batchShape);
 		long[] tiledim = new long[ tiles.get( 0 ).numDimensions() ];
 		tiles.get( 0 ).dimensions( tiledim );
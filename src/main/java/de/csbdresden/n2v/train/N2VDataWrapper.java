@@ -30,40 +30,55 @@ package de.csbdresden.n2v.train;
 
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
-import net.imglib2.FinalDimensions;
-import net.imglib2.FinalInterval;
-import net.imglib2.Point;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 import org.apache.commons.math3.util.Pair;
+import org.tensorflow.Tensor;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Random;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class N2VDataWrapper<T extends RealType<T> & NativeType<T>> {
 
-	private final List<RandomAccessibleInterval<T>> X;
+	private final TileSource tiles;
+	private final T type;
 	private final int batchSize;
 	private final int batchDim;
 	private final Dimensions shape;
-	private final Dimensions range;
 	private final long numChannels;
 	private final long box_size;
 	private static int local_sub_patch_radius = 5;
-	private final ValueManipulatorConsumer<T> manipulator;
-
+	private final ValueManipulatorConsumer manipulator;
+	private final int[] patchDims;
+	private final int patchSize;
+	// buffers of the batches built so far, reused by the following batches until the wrapper is disposed
+	private final Queue<BatchBuffers> buffers = new ConcurrentLinkedQueue<>();
+	private volatile boolean disposed = false;
+	private final ThreadLocal<SampleBuffers> sampleBuffers;
+	private ExecutorService executor;
+	private int numThreads = 1;
+	private final long seed;
+	private int[] order;
+	private int numTransforms = 1;
+	private int epoch = 0;
+
+	// number of samples, tiles are counted once per transform if augmentation is enabled
 	public long size() {
-		return X.size();
+		return (long) tiles.numTiles() * numTransforms;
 	}
 
 	public int numBatches() {
@@ -71,23 +86,60 @@ public class N2VDataWrapper<T extends RealType<T> & NativeType<T>> {
 		else return (int)(size() / batchSize);
 	}
 
-	interface ValueManipulatorConsumer<U> {
-		double accept(IntervalView<U> patch, Point coord);
+	// returns the replacement value for the pixel at the flat index of the patch with the given dimensions
+	interface ValueManipulatorConsumer {
+		float accept(float[] patch, int[] dims, int index, SplittableRandom random);
+	}
+
+	// used by one batch at a time, the tensors are created from a copy
+	private static class BatchBuffers {
+		final FloatBuffer x;
+		final FloatBuffer y;
+
+		BatchBuffers(int patchSize, int batchSize, long numChannels) {
+			x = allocateDirect((long) patchSize * batchSize * numChannels);
+			y = allocateDirect((long) patchSize * batchSize * numChannels * 2);
+		}
+
+		private static FloatBuffer allocateDirect(long size) {
+			if (size > Integer.MAX_VALUE / Float.BYTES) {
+				throw new IllegalArgumentException("A batch of " + size + " values exceeds the maximum buffer size of 2 GB, reduce the batch size or the patch shape.");
+			}
+			return ByteBuffer.allocateDirect((int) size * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	// scratch space of the thread sampling a single patch
+	private static class SampleBuffers {
+		final float[] patch;
+		final float[] tile;
+		final int[] coords;
+
+		SampleBuffers(int patchSize, int maxCoords) {
+			patch = new float[patchSize];
+			tile = new float[patchSize];
+			coords = new int[maxCoords];
+		}
+	}
+
+	public N2VDataWrapper(List<RandomAccessibleInterval<T>> X, int batchSize, double perc_pix, Dimensions shape, int neighborhoodRadius, ValueManipulatorConsumer manipulator) {
+		this(X, batchSize, perc_pix, shape, neighborhoodRadius, manipulator, N2VRandom.randomSeed());
 	}
 
-	private static <T> double value_manipulate(
-			ValueManipulatorConsumer<T> c, IntervalView<T> patch, Point coord) {
-		return c.accept(patch, coord);
+	public N2VDataWrapper(List<RandomAccessibleInterval<T>> X, int batchSize, double perc_pix, Dimensions shape, int neighborhoodRadius, ValueManipulatorConsumer manipulator, long seed) {
+		this(new RaiTileSource<>(X), X.get(0).randomAccess().get().createVariable(), batchSize, perc_pix, shape, neighborhoodRadius, manipulator, seed);
 	}
 
-	public N2VDataWrapper(List<RandomAccessibleInterval<T>> X, int batchSize, double perc_pix, Dimensions shape, int neighborhoodRadius, ValueManipulatorConsumer<T> manipulator) {
+	N2VDataWrapper(TileSource tiles, T type, int batchSize, double perc_pix, Dimensions shape, int neighborhoodRadius, ValueManipulatorConsumer manipulator, long seed) {
 
-		this.X = X;
+		this.tiles = tiles;
+		this.type = type;
+		this.seed = seed;
+		this.order = identity(tiles.numTiles());
 		this.local_sub_patch_radius = neighborhoodRadius;
 		this.batchSize = batchSize;
 		this.batchDim = shape.numDimensions();
 		this.shape = shape;
-		this.range = computeRange(X, shape);
 		this.numChannels = 1;
 
 		long multiplyShape = getMultiplyShape(shape);
@@ -101,14 +153,35 @@ public class N2VDataWrapper<T extends RealType<T> & NativeType<T>> {
 //            self.get_stratified_coords = self.__get_stratified_coords2D__
 
 		this.manipulator = manipulator;
+		this.patchDims = Intervals.dimensionsAsIntArray(shape);
+		this.patchSize = (int) multiplyShape;
+		int maxCoords = 1;
+		for (int dim : patchDims) {
+			maxCoords *= (int) Math.ceil(dim / (float) box_size);
+		}
+		int numCoords = maxCoords;
+		this.sampleBuffers = ThreadLocal.withInitial(() -> new SampleBuffers(patchSize, numCoords));
 	}
 
-	private static <T extends RealType<T> & NativeType<T>> FinalDimensions computeRange(List<RandomAccessibleInterval<T>> X, Dimensions shape) {
-		long[] rangeDims = new long[shape.numDimensions()];
-		for (int i = 0; i < rangeDims.length; i++) {
-			rangeDims[i] = X.get(0).dimension(i) - shape.dimension(i);
+	private static int[] identity(long size) {
+		int[] res = new int[(int) size];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = i;
 		}
-		return new FinalDimensions(rangeDims);
+		return res;
+	}
+
+	// if enabled, every tile is sampled in each of the eight orientations generated by
+	// 90 degree rotations in XY and mirroring of X, the patch has to be square in XY
+	public void setAugmentation(boolean augment) {
+		numTransforms = augment && patchDims[0] == patchDims[1] ? 8 : 1;
+		order = identity(size());
+	}
+
+	// the samples of a batch are split across numThreads tasks of the executor
+	public void setExecutor(ExecutorService executor, int numThreads) {
+		this.executor = executor;
+		this.numThreads = numThreads;
 	}
 
 	private long getMultiplyShape(Dimensions shape) {
@@ -120,209 +193,249 @@ public class N2VDataWrapper<T extends RealType<T> & NativeType<T>> {
 	}
 
 	public void on_epoch_end() {
-		Collections.shuffle(X);
+		N2VRandom.shuffle(order, N2VRandom.stream(seed, N2VRandom.SHUFFLE, epoch++));
 	}
 
-	public Pair<RandomAccessibleInterval<T>, RandomAccessibleInterval<T>> getItem(int i) {
-		int[] idx = new int[(int) Math.min(batchSize, size() - i*batchSize)];
-		for (int j = 0; j < idx.length; j++) {
-			idx[j] = i * batchSize + j;
-		}
+	// number of times the samples were shuffled
+	int getNumShuffles() {
+		return epoch;
+	}
 
-		Pair<RandomAccessibleInterval<T>, RandomAccessibleInterval<T>> patches = subpatch_sampling(idx);
+	// repeats the shuffles of another wrapper of the same data, e.g. to continue a resumed training in the same order
+	void setNumShuffles(int numShuffles) {
+		order = identity(size());
+		epoch = 0;
+		while (epoch < numShuffles) on_epoch_end();
+	}
 
-		RandomAccessibleInterval<T> patchX = patches.getFirst();
-		RandomAccessibleInterval<T> patchY = patches.getSecond();
-		for (int j = 0; j < patchX.dimension(batchDim); j++) {
-//            for c in range(self.n_chan):
-			IntervalView<T> patchXSlice = Views.hyperSlice(patchX, batchDim, j);
-			IntervalView<T> patchYSlice = Views.hyperSlice(patchY, batchDim, j);
-			manipulateX(box_size, shape, patchXSlice, patchYSlice, numChannels, manipulator);
+	public Pair<RandomAccessibleInterval<T>, RandomAccessibleInterval<T>> getItem(int i) {
+		BatchBuffers buffer = acquireBuffers();
+		try {
+			int n = fillBatch(i, i, buffer);
+			return new Pair<>(toImg(buffer.x, n, numChannels, type), toImg(buffer.y, n, numChannels * 2, type));
+		} finally {
+			releaseBuffers(buffer);
 		}
-		return patches;
 	}
 
-	static <T extends RealType<T> & NativeType<T>> void manipulateX(long boxSize, Dimensions shape, RandomAccessibleInterval<T> patchX, RandomAccessibleInterval<T> patchY, long n_chan, ValueManipulatorConsumer<T> manipulator) {
-		int channel = 0;
-		List<Point> coords = null;
-		if(shape.numDimensions() == 2) coords = get_stratified_coords2D(boxSize, shape);
-		if(shape.numDimensions() == 3) coords = get_stratified_coords3D(boxSize, shape);
-
-		RandomAccess<T> batchXRA = patchX.randomAccess();
-		RandomAccess<T> batchYRA = patchY.randomAccess();
-		for (int k = 0; k < coords.size(); k++) {
+	// X and Y tensors of batch i in bzyxc / byxc layout, filled directly from the training tiles,
+	// step selects the random stream, so the same batch index can be sampled differently
+	TrainingBatch getTensorBatch(int i, long step) {
+		BatchBuffers buffer = acquireBuffers();
+		try {
+			int n = fillBatch(i, step, buffer);
+			Tensor<Float> tensorX = Tensor.create(tensorShape(n, numChannels), buffer.x);
+			Tensor<Float> tensorY = Tensor.create(tensorShape(n, numChannels * 2), buffer.y);
+			return new TrainingBatch(tensorX, tensorY);
+		} finally {
+			releaseBuffers(buffer);
+		}
+	}
 
-			Point point = coords.get(k);
+	// batches built at the same time, e.g. by the prefetcher, use separate buffers
+	private BatchBuffers acquireBuffers() {
+		BatchBuffers buffer = buffers.poll();
+		return buffer != null ? buffer : new BatchBuffers(patchSize, batchSize, numChannels);
+	}
 
-			long[] channel1Pos = new long[patchX.numDimensions()];
-			long[] channel2Pos = new long[patchX.numDimensions()];
-			for (int i = 0; i < point.numDimensions(); i++) {
-				channel1Pos[i] = point.getLongPosition(i);
-				channel2Pos[i] = point.getLongPosition(i);
-			}
-			channel1Pos[channel1Pos.length-1] = channel;
-			channel2Pos[channel1Pos.length-1] = channel+n_chan;
+	private void releaseBuffers(BatchBuffers buffer) {
+		if (!disposed) buffers.add(buffer);
+	}
 
-			batchYRA.setPosition(channel2Pos);
-			batchYRA.get().setOne();
+	// drops the batch buffers, so their direct memory is released once they are collected.
+	// Batches can still be created afterwards, their buffers are not kept.
+	void dispose() {
+		disposed = true;
+		buffers.clear();
+	}
 
-			double originalValue = getValue(channel, batchXRA, point);
-			batchYRA.setPosition(channel1Pos);
-			batchYRA.get().setReal(originalValue);
+	private int fillBatch(int i, long step, BatchBuffers buffer) {
+		int n = (int) Math.min(batchSize, size() - i*batchSize);
+		int[] idx = new int[n];
+		for (int j = 0; j < idx.length; j++) {
+			idx[j] = order[i * batchSize + j];
+		}
+		buffer.x.clear();
+		buffer.y.clear();
+		subpatch_sampling(idx, step, buffer);
+		buffer.x.limit(n * patchSize);
+		buffer.y.limit(n * patchSize * 2);
+		return n;
+	}
 
-			double manipulatedValue = getManipulatedValue(patchX, manipulator, channel, point);
-			batchXRA.setPosition(channel1Pos);
-			batchXRA.get().setReal(manipulatedValue);
+	private long[] tensorShape(int n, long channels) {
+		long[] res = new long[batchDim + 2];
+		res[0] = n;
+		for (int d = 0; d < batchDim; d++) {
+			res[batchDim - d] = shape.dimension(d);
 		}
+		res[batchDim + 1] = channels;
+		return res;
 	}
 
-	private static <T extends RealType<T> & NativeType<T>> double getManipulatedValue(RandomAccessibleInterval<T> patch, ValueManipulatorConsumer<T> manipulator, int channel, Point position) {
-		IntervalView<T> XInterval = Views.hyperSlice(patch, position.numDimensions(), channel);
-		XInterval = Views.addDimension(XInterval, 0, 0);
-		return value_manipulate(manipulator, XInterval, position);
+	// converts a buffer in tensor layout into an image with dimensions x, y, (z), batch, channel
+	private RandomAccessibleInterval<T> toImg(FloatBuffer data, int n, long channels, T type) {
+		long[] dims = new long[batchDim + 2];
+		shape.dimensions(dims);
+		dims[batchDim] = n;
+		dims[batchDim + 1] = channels;
+		Img<T> res = new ArrayImgFactory<>(type).create(dims);
+		Cursor<T> cursor = res.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.next();
+			long index = cursor.getLongPosition(batchDim);
+			for (int d = batchDim - 1; d >= 0; d--) {
+				index = index * shape.dimension(d) + cursor.getLongPosition(d);
+			}
+			cursor.get().setReal(data.get((int) (index * channels + cursor.getLongPosition(batchDim + 1))));
+		}
+		return res;
 	}
 
-	private static <T extends RealType<T> & NativeType<T>> double getValue(int channel, RandomAccess<T> batch, Point position) {
-		long[] oldPos = new long[position.numDimensions()+1];
-		for (int i = 0; i < position.numDimensions(); i++) {
-			oldPos[i] = position.getLongPosition(i);
+	// masks the given flat coordinates of the patch and writes original value and mask into y starting at yOffset
+	static void manipulateX(float[] patch, int[] dims, int[] coords, int numCoords, FloatBuffer y, int yOffset, ValueManipulatorConsumer manipulator, SplittableRandom random) {
+		for (int k = 0; k < numCoords; k++) {
+			int index = coords[k];
+			y.put(yOffset + index * 2 + 1, 1);
+			y.put(yOffset + index * 2, patch[index]);
+			patch[index] = manipulator.accept(patch, dims, index, random);
 		}
-		oldPos[position.numDimensions()] = channel;
+	}
 
-		batch.setPosition(oldPos);
-		return batch.get().getRealDouble();
+	static int get_stratified_coords(long box_size, int[] dims, SplittableRandom random, int[] coords) {
+		if(dims.length == 2) return get_stratified_coords2D(box_size, dims, random, coords);
+		if(dims.length == 3) return get_stratified_coords3D(box_size, dims, random, coords);
+		return 0;
 	}
 
-	private static List<Point> get_stratified_coords3D(long box_size, Dimensions shape) {
-		List<Point> coords = new ArrayList<>();
-		int box_count_x = (int) Math.ceil(shape.dimension(0) / (float)box_size);
-		int box_count_y = (int) Math.ceil(shape.dimension(1) / (float)box_size);
-		int box_count_z = (int) Math.ceil(shape.dimension(2) / (float)box_size);
+	private static int get_stratified_coords3D(long box_size, int[] dims, SplittableRandom random, int[] coords) {
+		int count = 0;
+		int box = (int) box_size;
+		int box_count_x = (int) Math.ceil(dims[0] / (float)box_size);
+		int box_count_y = (int) Math.ceil(dims[1] / (float)box_size);
+		int box_count_z = (int) Math.ceil(dims[2] / (float)box_size);
 		for (int i = 0; i < box_count_x; i++) {
 			for (int j = 0; j < box_count_y; j++) {
 				for (int k = 0; k < box_count_z; k++) {
-					Point p = new Point((long)(Math.random() * box_size), (long)(Math.random() * box_size), (long)(Math.random() * box_size));
-	//                y, x = next(coord_gen)
-					p.setPosition(i * box_size + p.getIntPosition(0), 0);
-					p.setPosition(j * box_size + p.getIntPosition(1), 1);
-					p.setPosition(k * box_size + p.getIntPosition(2), 2);
-					if (p.getIntPosition(0) < shape.dimension(0)
-							&& p.getIntPosition(1) < shape.dimension(1)
-							&& p.getIntPosition(2) < shape.dimension(2)) {
-						coords.add(p);
+					int x = i * box + random.nextInt(box);
+					int y = j * box + random.nextInt(box);
+					int z = k * box + random.nextInt(box);
+					if (x < dims[0] && y < dims[1] && z < dims[2]) {
+						coords[count++] = (z * dims[1] + y) * dims[0] + x;
 					}
 				}
 			}
 		}
-		return coords;
+		return count;
 	}
 
-	private static List<Point> get_stratified_coords2D(long box_size, Dimensions shape) {
-		List<Point> coords = new ArrayList<>();
-		int box_count_x = (int) Math.ceil(shape.dimension(0) / (float)box_size);
-		int box_count_y = (int) Math.ceil(shape.dimension(1) / (float)box_size);
+	private static int get_stratified_coords2D(long box_size, int[] dims, SplittableRandom random, int[] coords) {
+		int count = 0;
+		int box = (int) box_size;
+		int box_count_x = (int) Math.ceil(dims[0] / (float)box_size);
+		int box_count_y = (int) Math.ceil(dims[1] / (float)box_size);
 		for (int i = 0; i < box_count_x; i++) {
 			for (int j = 0; j < box_count_y; j++) {
-				Point p = new Point((long)(Math.random() * box_size), (long)(Math.random() * box_size));
+				int x = i * box + random.nextInt(box);
+				int y = j * box + random.nextInt(box);
 //                y, x = next(coord_gen)
-				p.setPosition(i * box_size + p.getIntPosition(0), 0);
-				p.setPosition(j * box_size + p.getIntPosition(1), 1);
-				if (p.getIntPosition(0) < shape.dimension(0) && p.getIntPosition(1) < shape.dimension(1)) {
-					coords.add(p);
+				if (x < dims[0] && y < dims[1]) {
+					coords[count++] = y * dims[0] + x;
 				}
 			}
 		}
-		return coords;
+		return count;
 	}
 
-	public static <T extends RealType<T> & NativeType<T>> double uniform_withCP(IntervalView<T> patch, Point coord) {
-//		System.out.println("original coord: " + coord);
-		IntervalView<T> sub_patch = Views.zeroMin(get_subpatch(patch, coord, local_sub_patch_radius));
-		Point rand_coord = new Point(coord.numDimensions()+1);
-		Random random = new Random();
-		for (int i = 0; i < patch.numDimensions()-1; i++) {
-			rand_coord.setPosition((int)Math.floor(random.nextInt((int) (sub_patch.dimension(i)-1))), i);
-		}
-		RandomAccess<T> ra = sub_patch.randomAccess();
-		ra.setPosition(rand_coord);
-//		System.out.println("new coord: " + rand_coord);
-		return ra.get().getRealDouble();
+	public static float uniform_withCP(float[] patch, int[] dims, int index, SplittableRandom random) {
+		return ValueManipulator.UNIFORM_WITH_CP.manipulate(patch, dims, index, local_sub_patch_radius, random);
 	}
 
-	private static <T extends RealType<T> & NativeType<T>> IntervalView<T> get_subpatch(IntervalView<T> patch, Point coord, int local_sub_patch_radius) {
-
-		Point start = new Point(patch.numDimensions());
-		Point end = new Point(patch.numDimensions());
-		Point shift = new Point(patch.numDimensions());
-
-		for (int i = 0; i < patch.numDimensions()-1; i++) {
-			start.setPosition(Math.max(0, coord.getIntPosition(i) - local_sub_patch_radius), i);
-			end.setPosition(start.getIntPosition(i) + local_sub_patch_radius*2+1, i);
-			shift.setPosition(Math.min(0, patch.dimension(i)-end.getIntPosition(i)), i);
-			start.setPosition(start.getIntPosition(i) + shift.getIntPosition(i), i);
-			end.setPosition(end.getIntPosition(i) + shift.getIntPosition(i), i);
+	private void subpatch_sampling(int[] idx, long step, BatchBuffers buffer) {
+		if (executor == null || numThreads < 2 || idx.length < 2) {
+			subpatch_sampling(idx, 0, idx.length, step, buffer);
+			return;
+		}
+		// every sample has its own random stream and output region, so the result does not depend on the split
+		int numTasks = Math.min(numThreads, idx.length);
+		List<Future<?>> futures = new ArrayList<>(numTasks);
+		for (int t = 0; t < numTasks; t++) {
+			int from = t * idx.length / numTasks;
+			int to = (t + 1) * idx.length / numTasks;
+			futures.add(executor.submit(() -> subpatch_sampling(idx, from, to, step, buffer)));
+		}
+		for (Future<?> future : futures) {
+			try {
+				BatchPrefetcher.getUninterruptibly(future);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
 		}
-
-		long[] startPos = new long[start.numDimensions()];
-		long[] endPos = new long[start.numDimensions()];
-		start.localize(startPos);
-		end.localize(endPos);
-		return Views.interval(patch, startPos, endPos);
-//		slices = [ slice(s, e) for s, e in zip(start, end)]
-//		return patch[tuple(slices)]
-
 	}
 
-	private Pair<RandomAccessibleInterval<T>, RandomAccessibleInterval<T>> subpatch_sampling(int[] idx) {
-
-		List<RandomAccessibleInterval<T>> X_Patches = new ArrayList<>();
-		List<RandomAccessibleInterval<T>> Y_Patches = new ArrayList<>();
+	private void subpatch_sampling(int[] idx, int from, int to, long step, BatchBuffers buffer) {
 
-		Random r = new Random();
-		for (int i = 0; i < idx.length; i++) {
+		SampleBuffers sample = sampleBuffers.get();
+		long[] startX = new long[shape.numDimensions()];
+		for (int i = from; i < to; i++) {
 			int batchIndex = idx[i];
+			SplittableRandom r = N2VRandom.stream(seed, N2VRandom.SAMPLE, step * batchSize + i);
 
-			long[] startX = new long[shape.numDimensions()+2];
-			long[] endX = new long[startX.length];
-			long[] endY = new long[startX.length];
-
+			int transform = batchIndex % numTransforms;
+			int tile = batchIndex / numTransforms;
 			for (int dimIndex = 0; dimIndex < shape.numDimensions(); dimIndex++) {
-				startX[dimIndex] = r.nextInt((int) (range.dimension(dimIndex) + 1));
-				endX[dimIndex] = startX[dimIndex] + shape.dimension(dimIndex) -1;
-				endY[dimIndex] = shape.dimension(dimIndex);
+				long range = tiles.dimension(tile, dimIndex) - shape.dimension(dimIndex);
+				startX[dimIndex] = r.nextInt((int) (range + 1));
 			}
 
-			startX[shape.numDimensions()] = 0;
-			endX[shape.numDimensions()] = 0;
-
-			startX[shape.numDimensions()+1] = 0;
-			endX[shape.numDimensions()+1] = 0; //TODO make multichannel work
-
-			endY[shape.numDimensions()] = 1;
-
-			endY[shape.numDimensions()+1] = 2; //TODO make multichannel work
+			//TODO make multichannel work
+			if (transform == 0) {
+				tiles.copyPatch(tile, startX, patchDims, sample.patch);
+			} else {
+				// a random crop of the transformed tile equals the transformed random crop of the tile
+				tiles.copyPatch(tile, startX, patchDims, sample.tile);
+				transformXY(sample.tile, sample.patch, patchDims, transform);
+			}
+			// Y is zero apart from the blind-spots
+			int yOffset = i * patchSize * 2;
+			for (int j = 0; j < patchSize * 2; j++) {
+				buffer.y.put(yOffset + j, 0);
+			}
+			int numCoords = get_stratified_coords(box_size, patchDims, r, sample.coords);
+			manipulateX(sample.patch, patchDims, sample.coords, numCoords, buffer.y, yOffset, manipulator, r);
+			FloatBuffer x = buffer.x.duplicate();
+			x.position(i * patchSize);
+			x.put(sample.patch);
+		}
+	}
 
-			RandomAccessibleInterval<T> patch = getPatch(X.get(batchIndex), new FinalInterval(startX, endX));
-			X_Patches.add(patch);
-			FinalDimensions dimY = new FinalDimensions(endY);
-//			Y_Patches.add(opService.create().img(dimY, patch.randomAccess().get()));
-			Y_Patches.add(new ArrayImgFactory<>(patch.randomAccess().get()).create(dimY));
-//	    Y_Batches[batchIndex] = Y[batchIndex, y_start:y_start + shape[0], x_start:x_start + shape[1]]
+	// writes the element of the dihedral group of the XY square with the given index (0 - 7) applied to src into dest
+	static void transformXY(float[] src, float[] dest, int[] dims, int transform) {
+		int size = dims[0];
+		int planeSize = size * size;
+		int origin = sourceIndex(0, 0, size, transform);
+		int stepX = sourceIndex(1, 0, size, transform) - origin;
+		int stepY = sourceIndex(0, 1, size, transform) - origin;
+		int i = 0;
+		for (int plane = 0; plane < src.length; plane += planeSize) {
+			for (int y = 0; y < size; y++) {
+				int index = plane + origin + y * stepY;
+				for (int x = 0; x < size; x++, index += stepX) {
+					dest[i++] = src[index];
+				}
+			}
 		}
-		return new Pair<>(Views.concatenate(shape.numDimensions(), X_Patches), Views.concatenate(shape.numDimensions(), Y_Patches));
 	}
 
-	private RandomAccessibleInterval<T> getPatch(RandomAccessibleInterval<T> source, FinalInterval interval) {
-		Img<T> res = new ArrayImgFactory<>(source.randomAccess().get()).create(Views.zeroMin(Views.interval(source, interval)));
-		Cursor<T> inCursor = Views.zeroMin(Views.interval(source, interval)).localizingCursor();
-		RandomAccess<T> outRA = res.randomAccess();
-		while(inCursor.hasNext()) {
-			inCursor.next();
-			outRA.setPosition(inCursor);
-			outRA.get().set(inCursor.get());
+	private static int sourceIndex(int x, int y, int size, int transform) {
+		if (transform >= 4) x = size - 1 - x;
+		switch (transform % 4) {
+			case 1: return (size - 1 - x) * size + y;
+			case 2: return (size - 1 - y) * size + (size - 1 - x);
+			case 3: return x * size + (size - 1 - y);
+			default: return y * size + x;
 		}
-		return res;
-//		return opService.copy().rai(Views.zeroMin(Views.interval(source, interval)));
 	}
 
 }
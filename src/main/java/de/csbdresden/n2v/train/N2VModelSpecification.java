@@ -57,6 +57,16 @@ public class N2VModelSpecification extends ImageJModelSpecification {
 	private final static String idTrainingKwargsPatchShape = "patchShape";
 	private final static String idTrainingKwargsNeighborhoodRadius = "neighborhoodRadius";
 	private final static String idTrainingKwargsStepsFinished = "stepsFinished";
+	private final static String idTrainingKwargsSeed = "seed";
+	private final static String idTrainingKwargsValueManipulator = "valueManipulator";
+	private final static String idTrainingKwargsNormalization = "normalization";
+	private final static String idTrainingKwargsPercentileLow = "percentileLow";
+	private final static String idTrainingKwargsPercentileHigh = "percentileHigh";
+	private final static String idTrainingKwargsIntraOpThreads = "intraOpThreads";
+	private final static String idTrainingKwargsInterOpThreads = "interOpThreads";
+	private final static String idTrainingKwargsEarlyStoppingPatience = "earlyStoppingPatience";
+	private final static String idTrainingKwargsEarlyStoppingMinDelta = "earlyStoppingMinDelta";
+	private final static String idTrainingKwargsStoppedEpoch = "stoppedEpoch";
 
 	private final static String citationText = "Krull, A. and Buchholz, T. and Jug, F. Noise2void - learning denoising from single noisy images.\n" +
 			"Proceedings of the IEEE Conference on Computer Vision and Pattern Recognition (2019)";
@@ -70,10 +80,10 @@ public class N2VModelSpecification extends ImageJModelSpecification {
 	private final static List modelOutputDataRange = Arrays.asList("-inf", "inf");
 	private final static String modelOutputName = N2VTraining.predictionTargetOpName;
 
-	void update(N2VConfig config, N2VOutputHandler outputHandler, int stepsFinished) {
+	void update(N2VConfig config, N2VOutputHandler outputHandler, int stepsFinished, int stoppedEpoch) {
 		setMeta(outputHandler);
 		setInputsOutputs(config, outputHandler);
-		setTraining(config, stepsFinished);
+		setTraining(config, stepsFinished, stoppedEpoch);
 		setWeights(outputHandler);
 	}
 
@@ -83,7 +93,7 @@ public class N2VModelSpecification extends ImageJModelSpecification {
 		addWeights(TensorFlowSavedModelBundleSpecification.id, weights);
 	}
 
-	private void setTraining(N2VConfig config, int stepsFinished) {
+	private void setTraining(N2VConfig config, int stepsFinished, int stoppedEpoch) {
 		Map<String, Object> trainingKwargs = new LinkedHashMap<>();
 		trainingKwargs.put(idTrainingKwargsBatchSize, config.getTrainBatchSize());
 		trainingKwargs.put(idTrainingKwargsLearningRate, config.getLearningRate());
@@ -93,6 +103,20 @@ public class N2VModelSpecification extends ImageJModelSpecification {
 		trainingKwargs.put(idTrainingKwargsNumStepsPerEpoch, config.getStepsPerEpoch());
 		trainingKwargs.put(idTrainingKwargsPatchShape, config.getTrainPatchShape());
 		trainingKwargs.put(idTrainingKwargsStepsFinished, stepsFinished);
+		trainingKwargs.put(idTrainingKwargsSeed, config.getSeed());
+		trainingKwargs.put(idTrainingKwargsValueManipulator, config.getValueManipulator().getName());
+		if(config.isPercentileNormalization()) {
+			trainingKwargs.put(idTrainingKwargsNormalization, "percentile");
+			trainingKwargs.put(idTrainingKwargsPercentileLow, config.getPercentileLow());
+			trainingKwargs.put(idTrainingKwargsPercentileHigh, config.getPercentileHigh());
+		}
+		if(config.getSessionIntraOpThreads() > 0) trainingKwargs.put(idTrainingKwargsIntraOpThreads, config.getSessionIntraOpThreads());
+		if(config.getSessionInterOpThreads() > 0) trainingKwargs.put(idTrainingKwargsInterOpThreads, config.getSessionInterOpThreads());
+		if(config.getEarlyStoppingPatience() > 0) {
+			trainingKwargs.put(idTrainingKwargsEarlyStoppingPatience, config.getEarlyStoppingPatience());
+			trainingKwargs.put(idTrainingKwargsEarlyStoppingMinDelta, config.getEarlyStoppingMinDelta());
+		}
+		if(stoppedEpoch > 0) trainingKwargs.put(idTrainingKwargsStoppedEpoch, stoppedEpoch);
 		setTrainingStats(modelTrainingSource, trainingKwargs);
 	}
 
@@ -31,13 +31,18 @@ package de.csbdresden.n2v.train;
 import net.imagej.modelzoo.ImageTensorSample;
 import net.imagej.modelzoo.consumer.model.tensorflow.train.AbstractOutputHandler;
 import io.bioimage.specification.ModelSpecification;
+import io.bioimage.specification.io.SpecificationWriter;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.Context;
 import org.tensorflow.Graph;
 import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+import org.tensorflow.Tensors;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Collections;
 import java.util.List;
 
@@ -55,6 +60,16 @@ public class N2VOutputHandler extends AbstractOutputHandler {
 	private float currentValidationLoss = Float.MAX_VALUE;
 	private float bestValidationLoss = Float.MAX_VALUE;
 
+	private CheckpointWriter checkpointWriter;
+	private BestCheckpoint bestCheckpoint;
+	private ModelArchiveWriter archiveWriter;
+	private CheckpointStore checkpointStore;
+	private CheckpointStore autosaveStore;
+	private File bestWeights;
+	private volatile boolean checkpointSaved = false;
+	// steps of the checkpoint which is currently written, -1 if no checkpoint is written in the background
+	private volatile int checkpointStepsFinished = -1;
+
 	private final static String defaultSampleInput = "sample_in.tif";
 	private final static String defaultSampleOutput = "sample_out.tif";
 
@@ -75,7 +90,8 @@ public class N2VOutputHandler extends AbstractOutputHandler {
 		N2VModelSpecification spec = new N2VModelSpecification();
 		spec.setTimestamp(getTimestamp());
 		spec.setName("unnamed n2v " + name);
-		spec.update(config, this, training.getStepsFinished());
+		int stepsFinished = checkpointStepsFinished >= 0 ? checkpointStepsFinished : training.getStepsFinished();
+		spec.update(config, this, stepsFinished, training.getStoppedEpoch());
 		return spec;
 	}
 
@@ -89,18 +105,244 @@ public class N2VOutputHandler extends AbstractOutputHandler {
 		super.loadUntrainedGraph(graph, getClass().getResourceAsStream("/" + graphName) );
 	}
 
+	// checkpoints are written in the background until the returned writer is closed
+	CheckpointWriter createCheckpointWriter(Graph graph) throws IOException {
+		SessionThreads threads = new SessionThreads(config.getSessionIntraOpThreads(), config.getSessionInterOpThreads());
+		checkpointWriter = new CheckpointWriter(graph, threads, CheckpointWriter.DEFAULT_QUEUE_SIZE);
+		return checkpointWriter;
+	}
+
+	void flushCheckpoints() {
+		if(checkpointWriter != null) checkpointWriter.flush();
+	}
+
 	@Override
 	protected void copyBestModel() {
 		if(bestValidationLoss > currentValidationLoss) {
 			bestValidationLoss = currentValidationLoss;
-			super.copyBestModel();
+			// the most recent model is promoted once its pending checkpoint is written
+			if(checkpointWriter != null) checkpointWriter.submit(this::promoteBestModel);
+			else promoteBestModel();
+		}
+	}
+
+	// keeps a snapshot of the latest checkpoint in the checkpoint directory once its pending write is done
+	void storeValidatedCheckpoint() {
+		if(config.getCheckpointDirectory() == null) return;
+		int step = training.getStepsFinished();
+		float validationLoss = currentValidationLoss;
+		Runnable store = () -> {
+			try {
+				checkpointStore().add(getMostRecentModelDir(), step, validationLoss);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		};
+		if(checkpointWriter != null) checkpointWriter.submit(store);
+		else store.run();
+	}
+
+	// saves only the variables and the training state, the snapshot is not validated and not considered as best model.
+	// Without a checkpoint directory, the last one is kept next to the latest checkpoint.
+	void saveIntermediateCheckpoint(Session sess) {
+		if(checkpointWriter == null || checkpointWriter.isClosed()) return;
+		TrainingState state = training.captureState();
+		int step = training.getStepsFinished();
+		checkpointWriter.saveVariables(sess, dir -> {
+			try {
+				if(state != null) state.write(dir);
+				File graph = new File(getMostRecentModelDir(), "saved_model.pb");
+				if(graph.exists()) Files.copy(graph.toPath(), dir.toPath().resolve(graph.getName()));
+				autosaveStore().add(dir, step, Float.NaN);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// replaces the best weights of early stopping by a snapshot of the session, the checkpoint writer stores it
+	// after the pending checkpoints, so the training thread only dumps the variables
+	void saveBestWeights(Session sess) {
+		if(checkpointWriter == null || checkpointWriter.isClosed()) {
+			File prefix = getBestWeights();
+			BestCheckpoint.delete(bestWeightsDir());
+			prefix.getParentFile().mkdirs();
+			try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+				sess.runner().feed("save/Const", path).addTarget("save/control_dependency").run();
+			}
+			return;
+		}
+		checkpointWriter.saveVariables(sess, dir -> {
+			File target = bestWeightsDir();
+			BestCheckpoint.delete(target);
+			try {
+				BestCheckpoint.link(dir.toPath(), target.toPath());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// returns the checkpoint prefix of the best weights once their pending write is done
+	File getBestWeights() {
+		flushCheckpoints();
+		return new File(new File(bestWeightsDir(), "variables"), "variables");
+	}
+
+	private synchronized File bestWeightsDir() {
+		if(bestWeights == null) {
+			File latest = getMostRecentModelDir();
+			bestWeights = new File(latest.getParentFile(), latest.getName() + "-early-stopping");
+		}
+		return bestWeights;
+	}
+
+	// directory of the intermediate checkpoints if no checkpoint directory is set, null otherwise
+	File getAutosaveDirectory() {
+		if(config.getCheckpointDirectory() != null) return null;
+		File latest = getMostRecentModelDir();
+		return new File(latest.getParentFile(), latest.getName() + "-autosave");
+	}
+
+	// the intermediate checkpoints are only kept for resuming a training which did not finish,
+	// they are deleted after the pending checkpoints are written. A checkpoint directory is kept.
+	void deleteAutosaves() {
+		Runnable delete = () -> {
+			synchronized (this) {
+				File dir = getAutosaveDirectory();
+				if(dir != null) BestCheckpoint.delete(dir);
+				autosaveStore = null;
+			}
+		};
+		if(checkpointWriter != null) checkpointWriter.submit(delete);
+		else delete.run();
+	}
+
+	private synchronized CheckpointStore autosaveStore() throws IOException {
+		if(config.getCheckpointDirectory() != null) return checkpointStore();
+		if(autosaveStore == null) autosaveStore = new CheckpointStore(getAutosaveDirectory(), 0, 0, 1, 0);
+		return autosaveStore;
+	}
+
+	private synchronized CheckpointStore checkpointStore() throws IOException {
+		if(checkpointStore == null) checkpointStore = new CheckpointStore(config.getCheckpointDirectory(),
+				config.getKeepLastCheckpoints(), config.getKeepBestCheckpoints(), config.getKeepIntermediateCheckpoints(),
+				config.getMaxCheckpointBytes());
+		return checkpointStore;
+	}
+
+	private void promoteBestModel() {
+		File latest = getMostRecentModelDir();
+		try {
+			if(bestCheckpoint == null) bestCheckpoint = new BestCheckpoint(latest.getParentFile(), latest.getName() + "-best");
+			bestCheckpoint.promote(latest);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	void saveCheckpoint(Session sess, RandomAccessibleInterval<FloatType> exampleInput, RandomAccessibleInterval<FloatType> exampleOutput) {
-		super.saveCheckpoint(sess,
-				Collections.singletonList(new ImageTensorSample<>(exampleInput, defaultSampleInput)),
-				Collections.singletonList(new ImageTensorSample<>(exampleOutput, defaultSampleOutput)));
+		List<ImageTensorSample<FloatType>> inputs = Collections.singletonList(new ImageTensorSample<>(exampleInput, defaultSampleInput));
+		List<ImageTensorSample<FloatType>> outputs = Collections.singletonList(new ImageTensorSample<>(exampleOutput, defaultSampleOutput));
+		checkpointSaved = true;
+		TrainingState state = training.captureState();
+		if(checkpointWriter == null || checkpointWriter.isClosed()) {
+			super.saveCheckpoint(sess, inputs, outputs);
+			writeTrainingState(state);
+			return;
+		}
+		int stepsFinished = training.getStepsFinished();
+		checkpointWriter.save(sess, snapshot -> {
+			checkpointStepsFinished = stepsFinished;
+			try {
+				super.saveCheckpoint(snapshot, inputs, outputs);
+				writeTrainingState(state);
+			} finally {
+				checkpointStepsFinished = -1;
+			}
+		});
+	}
+
+	// the training state is written next to the variables of the checkpoint, so training can be resumed from it
+	private void writeTrainingState(TrainingState state) {
+		if(state == null) return;
+		try {
+			state.write(getMostRecentModelDir());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public File exportLatestTrainedModel() throws IOException {
+		flushCheckpoints();
+		if(!checkpointSaved) return null;
+		return exportTrainedModel(getMostRecentModelDir(), "latest");
+	}
+
+	// falls back to the latest model if no model was validated yet
+	@Override
+	public File exportBestTrainedModel() throws IOException {
+		flushCheckpoints();
+		if(!checkpointSaved) return null;
+		File best = bestCheckpoint == null ? null : bestCheckpoint.acquire();
+		if(best == null) return exportTrainedModel(getMostRecentModelDir(), "best");
+		try {
+			return exportTrainedModel(best, "best");
+		} finally {
+			bestCheckpoint.release(best);
+		}
+	}
+
+	// exports the latest and the best model at the same time, returns null if no checkpoint was saved.
+	// The specifications are created one after the other, only the archives are written in parallel.
+	public File[] exportTrainedModels() throws IOException {
+		flushCheckpoints();
+		if(!checkpointSaved) return null;
+		File best = bestCheckpoint == null ? null : bestCheckpoint.acquire();
+		try {
+			ModelArchiveWriter.Archive latestArchive = archive(getMostRecentModelDir(), "latest");
+			ModelArchiveWriter.Archive bestArchive = archive(best == null ? getMostRecentModelDir() : best, "best");
+			archiveWriter().write(latestArchive, bestArchive);
+			return new File[]{latestArchive.target, bestArchive.target};
+		} finally {
+			if(best != null) bestCheckpoint.release(best);
+		}
+	}
+
+	private File exportTrainedModel(File checkpointDir, String name) throws IOException {
+		ModelArchiveWriter.Archive archive = archive(checkpointDir, name);
+		archiveWriter().write(archive);
+		return archive.target;
+	}
+
+	// creating the specification uses the state of the output handler, so it is not done concurrently
+	private synchronized ModelArchiveWriter.Archive archive(File checkpointDir, String name) throws IOException {
+		File specFile = Files.createTempFile(getShortName() + "-", ".yaml").toFile();
+		byte[] spec;
+		try {
+			SpecificationWriter.write(createSpecification(name), specFile.toPath());
+			spec = Files.readAllBytes(specFile.toPath());
+		} finally {
+			specFile.delete();
+		}
+		File zip = Files.createTempFile(getShortName() + "-", ".bioimage.io.zip").toFile();
+		String bundle = getSavedModelBundlePackage();
+		if(bundle != null && bundle.startsWith("./")) bundle = bundle.substring(2);
+		return new ModelArchiveWriter.Archive(checkpointDir, bundle, SpecificationWriter.getModelFileName(), spec, zip);
+	}
+
+	private synchronized ModelArchiveWriter archiveWriter() {
+		if(archiveWriter == null) archiveWriter = new ModelArchiveWriter(config.isCompressModelArchives());
+		return archiveWriter;
+	}
+
+	@Override
+	public void dispose() {
+		if(bestCheckpoint != null) bestCheckpoint.dispose();
+		if(bestWeights != null) BestCheckpoint.delete(bestWeights);
+		archiveWriter = null;
+		super.dispose();
 	}
 
 	float getCurrentLoss() {
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Random streams of the data pipeline are derived from the seed in N2VConfig, the purpose of the
+// stream and a counter (e.g. the sample index), so they don't depend on the thread a stream is used on.
+class N2VRandom {
+
+	static final long TILES = 1;
+	static final long TRAINING_DATA = 2;
+	static final long VALIDATION_DATA = 3;
+	static final long SAMPLE = 4;
+	static final long SHUFFLE = 5;
+	static final long VALIDATION_SUBSET = 6;
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	static long randomSeed() {
+		return new SplittableRandom().nextLong();
+	}
+
+	static long derive(long seed, long purpose) {
+		return mix64(seed + purpose * GOLDEN_GAMMA);
+	}
+
+	static SplittableRandom stream(long seed, long purpose, long counter) {
+		return new SplittableRandom(derive(derive(seed, purpose), counter));
+	}
+
+	static void shuffle(int[] values, SplittableRandom random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+
+	static <T> void shuffle(List<T> values, SplittableRandom random) {
+		for (int i = values.size() - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			values.set(i, values.set(j, values.get(i)));
+		}
+	}
+
+	// finalizer of SplitMix64
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+}
@@ -30,6 +30,8 @@ package de.csbdresden.n2v.train;
 
 import de.csbdresden.n2v.ui.TrainingProgress;
 import de.csbdresden.n2v.util.N2VUtils;
+import de.csbdresden.n2v.util.PixelStatistics;
+import de.csbdresden.n2v.util.QuantileSketch;
 import io.scif.services.DatasetIOService;
 import net.imagej.ImageJ;
 import net.imagej.modelzoo.ModelZooArchive;
@@ -42,7 +44,6 @@ import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import org.apache.commons.math3.util.Pair;
 import org.scijava.Context;
 import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
@@ -57,14 +58,20 @@ import org.tensorflow.Tensors;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class N2VTraining implements ModelZooTraining {
 
@@ -107,14 +114,20 @@ public class N2VTraining implements ModelZooTraining {
 	private static final String lrOpName = "Adam/lr/read";
 	private static final String lrAssignOpName = "Adam/lr";
 
+	private static final int autotuneWarmupSteps = 2;
+	private static final int autotuneSteps = 5;
+
 	private TrainingProgress dialog;
 	private PreviewHandler previewHandler;
 	private N2VOutputHandler outputHandler;
 	private InputHandler inputHandler;
 
-	private boolean stopTraining = false;
+	private volatile boolean stopTraining = false;
+	// set when training is stopped from another thread, the training thread saves the checkpoint after the current step
+	private volatile boolean stopCheckpointPending = false;
 
 	private List<TrainingCallback> onEpochDoneCallbacks = new ArrayList<>();
+	private List<TrainingCallback> onValidationDoneCallbacks = new ArrayList<>();
 	private List<TrainingCanceledCallback> onTrainingCanceled = new ArrayList<>();
 
 	//TODO make setters etc.
@@ -122,10 +135,26 @@ public class N2VTraining implements ModelZooTraining {
 	private File zipFile;
 	private boolean canceled = false;
 	private ExecutorService pool;
+	private ExecutorService dataPool;
 	private Future<?> future;
+	private Thread trainingThread;
 	private Session session;
 	private N2VConfig config;
 	private int stepsFinished = 0;
+	private int batchIndex = 0;
+	private RandomAccessibleInterval<FloatType> validationPreviewInput;
+	private int lastValidationStep = -1;
+	private int stoppedEpoch = 0;
+	private int currentEpoch = 0;
+	private boolean validating = false;
+	private long lastCheckpointTime;
+	private boolean autosaveLogged = false;
+	private ReduceLearningRateOnPlateau reduceLearningRate;
+	private EarlyStopping earlyStopping;
+	private File resumeCheckpoint;
+	private TrainingState resumeState;
+	private N2VDataWrapper<FloatType> currentTrainingData;
+	private BatchPrefetcher currentPrefetcher;
 
 	public interface TrainingCallback {
 		void accept(N2VTraining training);
@@ -146,6 +175,21 @@ public class N2VTraining implements ModelZooTraining {
 		init(config);
 	}
 
+	// continues the training of a checkpoint directory with a training state, e.g. one kept in the checkpoint
+	// directory of the config, at the exact step it was saved. The same training data has to be added again.
+	public void resume(File checkpoint, N2VConfig config) throws IOException {
+		if (Thread.interrupted()) return;
+		TrainingState state = TrainingState.read(checkpoint);
+		if (state == null) throw new IOException("No training state found in " + checkpoint.getAbsolutePath());
+		resumeCheckpoint = checkpoint;
+		resumeState = state;
+		config.setSeed(state.seed)
+				.setBatchSize(state.batchSize)
+				.setPatchShape(state.patchShape)
+				.setAutotuneBatchAndPatchSize(false);
+		init(config);
+	}
+
 	public void init(N2VConfig config) {
 
 		this.config = config;
@@ -173,7 +217,13 @@ public class N2VTraining implements ModelZooTraining {
 		tensorFlowService.loadLibrary();
 		logService.info(tensorFlowService.getStatus().getInfo());
 
-		addCallbackOnEpochDone(new ReduceLearningRateOnPlateau()::reduceLearningRateOnPlateau);
+		reduceLearningRate = new ReduceLearningRateOnPlateau();
+		addCallbackOnValidationDone(reduceLearningRate::reduceLearningRateOnPlateau);
+		if (config.getEarlyStoppingPatience() > 0) {
+			earlyStopping = new EarlyStopping(config.getEarlyStoppingPatience(),
+					config.getEarlyStoppingMinDelta(), config.isRestoreBestWeights());
+			addCallbackOnValidationDone(earlyStopping::stopOnPlateau);
+		}
 
 
 	}
@@ -214,35 +264,33 @@ public class N2VTraining implements ModelZooTraining {
 	}
 
 	private void mainThread() {
+		trainingThread = Thread.currentThread();
 		outputHandler = new N2VOutputHandler(config, this, context);
-		addCallbackOnEpochDone(training -> outputHandler.copyBestModel());
+		addCallbackOnValidationDone(training -> outputHandler.copyBestModel());
+		addCallbackOnValidationDone(training -> outputHandler.storeValidatedCheckpoint());
 
 		logService.info("Create session..");
 		if (!headless()) dialog.setCurrentTaskMessage("Creating session");
 		if (Thread.interrupted() || isCanceled()) return;
 
-		try (Graph graph = new Graph();
-		     Session sess = new Session(graph)) {
+		// the graph is imported before the session is created, so the session threads can be tuned on it.
+		// The checkpoint writer is closed first, so pending checkpoints are written before the session is closed.
+		try (Graph graph = loadGraph();
+		     Session sess = createSession(graph);
+		     CheckpointWriter checkpointWriter = outputHandler.createCheckpointWriter(graph)) {
 
 			this.session = sess;
 
-			try {
-				if (!continueTraining) {
-					logService.info("Import graph..");
-					output().loadUntrainedGraph(graph);
-					outputHandler.createSavedModelDirs();
-				} else {
-					logService.info("Import trained graph..");
-					File trainedModel = output().loadTrainedGraph(graph, zipFile);
-					outputHandler.createSavedModelDirsFromExisting(trainedModel);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
 			if (Thread.interrupted() || isCanceled()) return;
 
 			output().initTensors(sess);
+			if (resumeState != null) {
+				logService.info("Resume training at step " + resumeState.stepsFinished + "..");
+				File prefix = new File(new File(resumeCheckpoint, "variables"), "variables");
+				try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+					sess.runner().feed("save/Const", path).addTarget("save/restore_all").run();
+				}
+			}
 
 			if (Thread.interrupted() || isCanceled()) return;
 			logService.info("Normalizing..");
@@ -250,12 +298,9 @@ public class N2VTraining implements ModelZooTraining {
 
 			normalize();
 
-			if (Thread.interrupted() || isCanceled()) return;
-			logService.info("Augment tiles..");
-			if (!headless()) dialog.setCurrentTaskMessage("Augment tiles ...");
-
-			N2VDataGenerator.augment(input().getX());
-			N2VDataGenerator.augment(input().getValidationX());
+			boolean augment = N2VDataGenerator.isAugmentable(input().getX());
+			N2VDataGenerator.expandDimensions(input().getX());
+			N2VDataGenerator.expandDimensions(input().getValidationX());
 
 			if (Thread.interrupted() || isCanceled()) return;
 			logService.info("Prepare training batches...");
@@ -264,25 +309,54 @@ public class N2VTraining implements ModelZooTraining {
 //			uiService.show("_X", opService.copy().rai(_X));
 //			uiService.show("_validationX",opService.copy().rai(_validationX));
 
-			if (!batchNumSufficient(input().getX().size())) return;
+			if (!batchNumSufficient(input().getX().size() * (augment ? 8 : 1))) return;
 			double n2v_perc_pix = 1.6;
 
+			// worker threads of a ForkJoinPool are daemon threads which terminate when idle
+			if (config().getNumDataThreads() > 1) dataPool = new ForkJoinPool(config().getNumDataThreads());
+
 
-			N2VDataWrapper<FloatType> training_data = makeTrainingData(n2v_perc_pix);
+			TileSource trainingTiles = tileSource(input().getX(), input().getMappedX());
+			N2VDataWrapper<FloatType> training_data = makeTrainingData(trainingTiles, n2v_perc_pix, augment);
+			if (resumeState != null) training_data.setNumShuffles(resumeState.shuffles);
 
 			if (Thread.interrupted()) return;
 			logService.info("Prepare validation batches..");
 			if (!headless()) dialog.setCurrentTaskMessage("Prepare validation batches...");
 
-			List<Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>>> validation_data = makeValidationData(n2v_perc_pix);
-
-			int index = 0;
+			List<TrainingBatch> validation_data = makeValidationData(n2v_perc_pix, augment);
+			// the training batch size can shrink during training, the validation batches keep their size
+			Tensor<Float> validationWeights = makeWeightsTensor(validationBatchSize(augment));
+			List<TrainingBatch> validationSubset = selectValidationBatches(validation_data);
+			lastValidationStep = -1;
+
+			batchIndex = 0;
+			int firstEpoch = 0;
+			int firstStepInEpoch = 0;
+			long firstBatchStep = 0;
+			boolean validationPending = false;
+			if (resumeState != null) {
+				firstEpoch = resumeState.epoch;
+				firstStepInEpoch = resumeState.stepsFinished - resumeState.epoch * config().getStepsPerEpoch();
+				firstBatchStep = resumeState.batchStep;
+				validationPending = resumeState.validationPending;
+				stepsFinished = resumeState.stepsFinished;
+				batchIndex = resumeState.batchIndex;
+				lastValidationStep = resumeState.lastValidationStep;
+				outputHandler.setCurrentValidationLoss(resumeState.validationLoss);
+				setLearningRate(resumeState.learningRate);
+				reduceLearningRate.restoreState(resumeState);
+				if (earlyStopping != null) earlyStopping.restoreState(resumeState);
+				resumeState = null;
+			}
 //			List<RandomAccessibleInterval<FloatType>> inputs = new ArrayList<>();
 //			List<RandomAccessibleInterval<FloatType>> targets = new ArrayList<>();
 			Tensor<Float> tensorWeights = makeWeightsTensor();
 
 			if (Thread.interrupted() || isCanceled()) {
 				tensorWeights.close();
+				validationWeights.close();
+				validation_data.forEach(TrainingBatch::close);
 				return;
 			}
 			logService.info("Start training..");
@@ -297,69 +371,155 @@ public class N2VTraining implements ModelZooTraining {
 
 			previewHandler = new PreviewHandler(context, config().getTrainDimensions());
 			if (!headless()) {
-				RandomAccessibleInterval<FloatType> denormalized = denormalize(validation_data.get(0).getFirst());
+				RandomAccessibleInterval<FloatType> denormalized = denormalize(validationPreviewInput);
 				previewHandler.update(denormalized, denormalized, headless(), isStopped() || isCanceled());
 			}
 
-			for (int i = 0; i < config().getNumEpochs() && !isStopped(); i++) {
-				remainingTimeEstimator.setCurrentStep(i);
-				String remainingTimeString = remainingTimeEstimator.getRemainingTimeString();
-				logService.info("Epoch " + (i + 1) + "/" + config().getNumEpochs() + " " + remainingTimeString);
-
-				List<Double> losses = new ArrayList<>(config().getStepsPerEpoch());
-
-				for (int j = 0; j < config().getStepsPerEpoch() && !isStopped(); j++) {
+			BatchPrefetcher prefetcher = makePrefetcher(training_data, firstBatchStep);
+			lastCheckpointTime = System.nanoTime();
+			currentTrainingData = training_data;
+			currentPrefetcher = prefetcher;
+			Tensor<Boolean> learningPhaseTraining = Tensors.create(true);
+			Tensor<Boolean> learningPhaseValidation = Tensors.create(false);
 
-					if (Thread.interrupted() || isCanceled()) {
+			try {
+				// the resumed checkpoint was saved before the callbacks of its validation ran
+				if (validationPending) {
+					if (!runValidation(sess, validationSubset, validationWeights, learningPhaseValidation)) {
 						tensorWeights.close();
 						return;
 					}
-
-					if (index * config().getTrainBatchSize() + config().getTrainBatchSize() > input().getX().size() - 1) {
-						index = 0;
-						logService.info("starting with index 0 of training batches");
-					}
-
-					Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>> item = training_data.getItem(index);
+				}
+				for (int i = firstEpoch; i < config().getNumEpochs() && !isStopped(); i++) {
+					currentEpoch = i;
+					remainingTimeEstimator.setCurrentStep(i);
+					String remainingTimeString = remainingTimeEstimator.getRemainingTimeString();
+					logService.info("Epoch " + (i + 1) + "/" + config().getNumEpochs() + " " + remainingTimeString);
+
+					List<Double> losses = new ArrayList<>(config().getStepsPerEpoch());
+
+					for (int j = i == firstEpoch ? firstStepInEpoch : 0; j < config().getStepsPerEpoch() && !isStopped(); j++) {
+
+						if (Thread.interrupted() || isCanceled()) {
+							tensorWeights.close();
+							return;
+						}
+
+						TrainingBatch batch = prefetcher.next();
+						if (batch == null) {
+							tensorWeights.close();
+							return;
+						}
 //					inputs.add( item.getFirst() );
 //					targets.add( item.getSecond() );
 //					uiService.show("input", opService.copy().rai(item.getFirst()));
 //					uiService.show("target", opService.copy().rai(item.getSecond()));
 
-					runTrainingOp(sess, tensorWeights, item);
-
-					losses.add((double) outputHandler.getCurrentLoss());
-					logStatusInConsole(j + 1, config().getStepsPerEpoch(), outputHandler);
-					if (!headless() && !isCanceled() && !isStopped()) dialog.updateTrainingProgress(i + 1, j + 1);
+						try {
+							runTrainingOp(sess, tensorWeights, learningPhaseTraining, batch);
+						} catch (IllegalStateException e) {
+							if (!isOutOfMemory(e) || config().getTrainBatchSize() == 1) throw e;
+							// repeat the step with half the batch size, with the random stream and the samples of the
+							// failed batch, the batches prefetched after it are drawn again in the new batch size
+							long failedStep = prefetcher.nextStep() - 1;
+							int failedIndex = prefetcher.lastIndex();
+							prefetcher.close();
+							tensorWeights.close();
+							int failedBatchSize = config().getTrainBatchSize();
+							config().setBatchSize(failedBatchSize / 2);
+							batchIndex = rescaleBatchIndex(failedIndex, failedBatchSize, config().getTrainBatchSize());
+							logService.warn("Not enough memory available, reducing the training batch size to " + config().getTrainBatchSize() + ".");
+							int numShuffles = training_data.getNumShuffles();
+							training_data.dispose();
+							training_data = makeTrainingData(trainingTiles, n2v_perc_pix, augment);
+							training_data.setNumShuffles(numShuffles);
+							prefetcher = makePrefetcher(training_data, failedStep);
+							currentTrainingData = training_data;
+							currentPrefetcher = prefetcher;
+							tensorWeights = makeWeightsTensor();
+							j--;
+							continue;
+						} finally {
+							batch.close();
+						}
+
+						losses.add((double) outputHandler.getCurrentLoss());
+						logStatusInConsole(j + 1, config().getStepsPerEpoch(), outputHandler);
+						if (!headless() && !isCanceled() && !isStopped()) dialog.updateTrainingProgress(i + 1, j + 1);
+
+						stepsFinished = config().getStepsPerEpoch() * i + j + 1;
+
+						if (config().getValidationStepInterval() > 0 && stepsFinished % config().getValidationStepInterval() == 0
+								&& !isCanceled() && !isStopped()) {
+							if (!runValidation(sess, validationSubset, validationWeights, learningPhaseValidation)) {
+								tensorWeights.close();
+								return;
+							}
+						}
+
+						if (intermediateCheckpointDue() && !isCanceled() && !isStopped()) {
+							if (!autosaveLogged && outputHandler.getAutosaveDirectory() != null) {
+								autosaveLogged = true;
+								logService.info("Intermediate checkpoints are saved to " + outputHandler.getAutosaveDirectory().getAbsolutePath()
+										+ ", they are deleted when training finishes. Set a checkpoint directory to keep them.");
+							}
+							outputHandler.saveIntermediateCheckpoint(sess);
+							lastCheckpointTime = System.nanoTime();
+						}
 
-					stepsFinished = config().getStepsPerEpoch() * i + j + 1;
+					}
 
-					index++;
+					// saved before the data is shuffled, so a stopped epoch is resumed with the same batches
+					if (stopCheckpointPending) saveStopCheckpoint();
 
-				}
+					if (!headless()) {
+						dialog.enableModelSaving();
+					}
 
-				if (!headless()) {
-					dialog.enableModelSaving();
-				}
+					if (Thread.interrupted() || isCanceled()) {
+						tensorWeights.close();
+						return;
+					}
+					// a training resumed at the end of an epoch was shuffled already
+					if (training_data.getNumShuffles() == i) prefetcher.pauseAndRun(training_data::on_epoch_end);
+
+					if (!isCanceled() && !isStopped()) {
+						boolean validated = lastValidationStep == stepsFinished;
+						if (config().getValidationStepInterval() <= 0 && (i + 1) % config().getValidationInterval() == 0 && !validated) {
+							if (!runValidation(sess, validationSubset, validationWeights, learningPhaseValidation)) {
+								tensorWeights.close();
+								return;
+							}
+							validated = true;
+						}
+						if (!headless()) dialog.updateTrainingChart(i + 1, losses, validated ? outputHandler.getCurrentValidationLoss() : Float.NaN);
+						onEpochDoneCallbacks.forEach(callback -> callback.accept(this));
+					}
 
-				if (Thread.interrupted() || isCanceled()) {
-					tensorWeights.close();
-					return;
 				}
-				training_data.on_epoch_end();
+				if (stopCheckpointPending) saveStopCheckpoint();
 
-				if (!isCanceled() && !isStopped()) {
-					Float validationLoss = validate(sess, validation_data, tensorWeights);
-					if (Thread.interrupted() || isCanceled()) {
+				// the final model is validated like the previous ones, so best model selection stays comparable,
+				// and is then also validated on all batches if only a subset is used during training
+				if (!isCanceled() && stepsFinished > 0 && lastValidationStep != stepsFinished) {
+					if (!runValidation(sess, validationSubset, validationWeights, learningPhaseValidation)) {
 						tensorWeights.close();
 						return;
 					}
-					outputHandler.saveCheckpoint(sess, previewHandler.getExampleInput(), previewHandler.getExampleOutput());
-					outputHandler.setCurrentValidationLoss(validationLoss);
-					if (!headless()) dialog.updateTrainingChart(i + 1, losses, validationLoss);
-					onEpochDoneCallbacks.forEach(callback -> callback.accept(this));
 				}
-
+				if (!isCanceled() && stepsFinished > 0 && validationSubset.size() < validation_data.size()) {
+					logService.info("Validate on all batches..");
+					Float validationLoss = validate(sess, validation_data, validationWeights, learningPhaseValidation);
+					if (validationLoss != null) outputHandler.setCurrentValidationLoss(validationLoss);
+				}
+			} finally {
+				prefetcher.close();
+				training_data.dispose();
+				if (dataPool != null) dataPool.shutdown();
+				validation_data.forEach(TrainingBatch::close);
+				validationWeights.close();
+				learningPhaseTraining.close();
+				learningPhaseValidation.close();
 			}
 
 			tensorWeights.close();
@@ -368,6 +528,7 @@ public class N2VTraining implements ModelZooTraining {
 
 			if (!headless()) dialog.setTaskDone(1);
 			stopTraining = true;
+			outputHandler.deleteAutosaves();
 			logService.info("Training done.");
 
 //			if (inputs.size() > 0) uiService.show("inputs", Views.stack(inputs));
@@ -379,18 +540,220 @@ public class N2VTraining implements ModelZooTraining {
 				logService.error("Not enough memory available. Try to reduce the training batch size.");
 			}
 			throw e;
+		} catch (IOException e) {
+			cancel();
+			logService.error("Could not create the checkpoint writer.", e);
+		}
+	}
+
+	private Graph loadGraph() {
+		Graph graph = new Graph();
+		try {
+			if (!continueTraining) {
+				logService.info("Import graph..");
+				output().loadUntrainedGraph(graph);
+				outputHandler.createSavedModelDirs();
+			} else {
+				logService.info("Import trained graph..");
+				File trainedModel = output().loadTrainedGraph(graph, zipFile);
+				outputHandler.createSavedModelDirsFromExisting(trainedModel);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return graph;
+	}
+
+	private Session createSession(Graph graph) {
+		if (config().isAutotuneSessionThreads() && !isCanceled()) {
+			SessionThreads best = autotuneSessionThreads(graph);
+			config().setSessionThreads(best.intraOp, best.interOp);
+		}
+		SessionThreads threads = new SessionThreads(config().getSessionIntraOpThreads(), config().getSessionInterOpThreads());
+		if (config().isAutotuneBatchAndPatchSize() && !isCanceled()) {
+			autotuneBatchAndPatchSize(graph, threads);
+		}
+		logService.info("Session threads: " + threads);
+		return threads.createSession(graph);
+	}
+
+	// runs a few training steps on synthetic data in a separate session per candidate setting,
+	// the variables of the training session are not affected
+	private SessionThreads autotuneSessionThreads(Graph graph) {
+		logService.info("Tune session threads..");
+		if (!headless()) dialog.setCurrentTaskMessage("Tuning session threads");
+		SessionThreads best = new SessionThreads(config().getSessionIntraOpThreads(), config().getSessionInterOpThreads());
+		double bestTime = Double.MAX_VALUE;
+		TrainingBatch batch = makeSyntheticBatch(config().getTrainBatchSize(), (int) config().getTrainPatchShape());
+		Tensor<Float> tensorWeights = makeWeightsTensor(config().getTrainBatchSize());
+		Tensor<Boolean> learningPhase = Tensors.create(true);
+		try {
+			int numCores = Runtime.getRuntime().availableProcessors();
+			for (SessionThreads candidate : SessionThreads.candidates(numCores, config().getNumDataThreads())) {
+				if (Thread.currentThread().isInterrupted() || isCanceled()) break;
+				try (Session candidateSession = candidate.createSession(graph)) {
+					output().initTensors(candidateSession);
+					for (int i = 0; i < autotuneWarmupSteps; i++) {
+						runTrainingOp(candidateSession, tensorWeights, learningPhase, batch);
+					}
+					long start = System.nanoTime();
+					for (int i = 0; i < autotuneSteps; i++) {
+						runTrainingOp(candidateSession, tensorWeights, learningPhase, batch);
+					}
+					double time = (System.nanoTime() - start) / 1e6 / autotuneSteps;
+					logService.info(candidate + ": " + Math.round(time) + " ms per step");
+					if (time < bestTime) {
+						bestTime = time;
+						best = candidate;
+					}
+				}
+			}
+		} finally {
+			batch.close();
+			tensorWeights.close();
+			learningPhase.close();
+		}
+		logService.info("Chosen session threads: " + best);
+		return best;
+	}
+
+	// the patch shape has to fit into the tiles and be divisible by the downsampling factor of the network
+	private void autotuneBatchAndPatchSize(Graph graph, SessionThreads threads) {
+		logService.info("Tune batch size and patch shape..");
+		if (!headless()) dialog.setCurrentTaskMessage("Tuning batch size and patch shape");
+		int multiple = (int) Math.pow(2, config().getNetworkDepth());
+		long maxPatchShape = Math.min(smallestTileDimension(input().getX()), smallestTileDimension(input().getValidationX()));
+		int maxBatchSize = input().getX().size() * (N2VDataGenerator.isAugmentable(input().getX()) ? 8 : 1);
+		int batchSize = config().getTrainBatchSize();
+		int patchShape = (int) config().getTrainPatchShape();
+		Set<Integer> patchShapes = new LinkedHashSet<>();
+		for (int candidate : new int[]{patchShape / 2, patchShape, patchShape * 2}) {
+			candidate = candidate / multiple * multiple;
+			if (candidate >= multiple && candidate <= maxPatchShape) patchShapes.add(candidate);
+		}
+		Set<Integer> batchSizes = new LinkedHashSet<>();
+		for (int candidate : new int[]{batchSize / 2, batchSize, batchSize * 2}) {
+			if (candidate >= 1 && candidate <= maxBatchSize) batchSizes.add(candidate);
+		}
+		double bestThroughput = 0;
+		Tensor<Boolean> learningPhase = Tensors.create(true);
+		try {
+			for (int candidatePatchShape : patchShapes) {
+				for (int candidateBatchSize : batchSizes) {
+					if (Thread.currentThread().isInterrupted() || isCanceled()) return;
+					double throughput = measureThroughput(graph, threads, learningPhase, candidateBatchSize, candidatePatchShape);
+					if (throughput > bestThroughput) {
+						bestThroughput = throughput;
+						batchSize = candidateBatchSize;
+						patchShape = candidatePatchShape;
+					}
+				}
+			}
+		} finally {
+			learningPhase.close();
+		}
+		if (bestThroughput == 0) {
+			logService.warn("No batch size and patch shape candidate fits into memory, keeping the configured values.");
+			return;
 		}
+		logService.info("Chosen batch size: " + batchSize + ", patch shape: " + patchShape);
+		config().setBatchSize(batchSize).setPatchShape(patchShape);
 	}
 
-	private N2VDataWrapper<FloatType> makeTrainingData(double n2v_perc_pix) {
+	private static long smallestTileDimension(List<RandomAccessibleInterval<FloatType>> tiles) {
+		long res = Long.MAX_VALUE;
+		for (RandomAccessibleInterval<FloatType> tile : tiles) {
+			for (int d = 0; d < tile.numDimensions(); d++) {
+				if (tile.dimension(d) > 1) res = Math.min(res, tile.dimension(d));
+			}
+		}
+		return res;
+	}
+
+	// masked pixels per second, -1 if the candidate runs out of memory or exceeds the memory budget
+	private double measureThroughput(Graph graph, SessionThreads threads, Tensor<Boolean> learningPhase, int batchSize, int patchShape) {
+		String candidate = "batch size " + batchSize + ", patch shape " + patchShape;
+		ProcessMemory.resetPeak();
+		TrainingBatch batch = makeSyntheticBatch(batchSize, patchShape);
+		Tensor<Float> tensorWeights = makeWeightsTensor(batchSize);
+		try (Session candidateSession = threads.createSession(graph)) {
+			output().initTensors(candidateSession);
+			for (int i = 0; i < autotuneWarmupSteps; i++) {
+				runTrainingOp(candidateSession, tensorWeights, learningPhase, batch);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < autotuneSteps; i++) {
+				runTrainingOp(candidateSession, tensorWeights, learningPhase, batch);
+			}
+			double samplesPerSecond = autotuneSteps * batchSize / ((System.nanoTime() - start) / 1e9);
+			long peakMemory = ProcessMemory.peakResidentBytes();
+			logService.info(candidate + ": " + Math.round(samplesPerSecond) + " samples/s, peak memory "
+					+ (peakMemory < 0 ? "unknown" : (peakMemory / (1024 * 1024)) + " MB"));
+			if (config().getMemoryBudget() > 0 && peakMemory > config().getMemoryBudget()) {
+				logService.info(candidate + " exceeds the memory budget");
+				return -1;
+			}
+			return samplesPerSecond * Math.pow(patchShape, config().getTrainDimensions());
+		} catch (IllegalStateException e) {
+			if (!isOutOfMemory(e)) throw e;
+			logService.info(candidate + ": out of memory");
+			return -1;
+		} finally {
+			batch.close();
+			tensorWeights.close();
+		}
+	}
+
+	private static boolean isOutOfMemory(IllegalStateException e) {
+		return e.getMessage() != null && e.getMessage().contains("OOM");
+	}
+
+	// random input with every pixel masked, the duration of a step does not depend on the data
+	private TrainingBatch makeSyntheticBatch(int batchSize, int patchShape) {
+		int numPixels = batchSize;
+		long[] shapeX = new long[config().getTrainDimensions() + 2];
+		shapeX[0] = batchSize;
+		for (int d = 1; d <= config().getTrainDimensions(); d++) {
+			shapeX[d] = patchShape;
+			numPixels *= patchShape;
+		}
+		shapeX[shapeX.length - 1] = 1;
+		long[] shapeY = shapeX.clone();
+		shapeY[shapeY.length - 1] = 2;
+		float[] x = new float[numPixels];
+		float[] y = new float[numPixels * 2];
+		SplittableRandom random = new SplittableRandom(config().getSeed());
+		for (int i = 0; i < numPixels; i++) {
+			x[i] = (float) random.nextDouble();
+			y[2 * i] = (float) random.nextDouble();
+			y[2 * i + 1] = 1;
+		}
+		return new TrainingBatch(Tensor.create(shapeX, FloatBuffer.wrap(x)), Tensor.create(shapeY, FloatBuffer.wrap(y)));
+	}
+
+	private BatchPrefetcher makePrefetcher(N2VDataWrapper<FloatType> data, long firstStep) {
+		return new BatchPrefetcher(data::getTensorBatch, () -> nextBatchIndex(data.size()), config().getPrefetchDepth(), firstStep);
+	}
+
+	private int validationBatchSize(boolean augment) {
+		return Math.min(config().getTrainBatchSize(), input().getValidationX().size() * (augment ? 8 : 1));
+	}
+
+	private N2VDataWrapper<FloatType> makeTrainingData(TileSource tiles, double n2v_perc_pix, boolean augment) {
 		long[] patchShapeData = new long[config().getTrainDimensions()];
 		Arrays.fill(patchShapeData, config().getTrainPatchShape());
 		Dimensions patch_shape = new FinalDimensions(patchShapeData);
 
-		return new N2VDataWrapper<>(input().getX(), config().getTrainBatchSize(), n2v_perc_pix, patch_shape, config().getNeighborhoodRadius(), N2VDataWrapper::uniform_withCP);
+		N2VDataWrapper<FloatType> data = new N2VDataWrapper<>(tiles, new FloatType(), config().getTrainBatchSize(), n2v_perc_pix, patch_shape, config().getNeighborhoodRadius(),
+				config().getValueManipulator().consumer(config().getNeighborhoodRadius()),
+				N2VRandom.derive(config().getSeed(), N2VRandom.TRAINING_DATA));
+		data.setExecutor(dataPool, config().getNumDataThreads());
+		data.setAugmentation(augment);
+		return data;
 	}
 
-	private List<Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>>> makeValidationData(double n2v_perc_pix) {
+	// the masked validation batches are fixed, so they are converted to tensors once and reused in every validation run
+	private List<TrainingBatch> makeValidationData(double n2v_perc_pix, boolean augment) {
 		int n_train = input().getX().size();
 		int n_val = input().getValidationX().size();
 		double frac_val = (1.0 * n_val) / (n_train + n_val);
@@ -401,39 +764,87 @@ public class N2VTraining implements ModelZooTraining {
 		long[] patchShapeData = new long[config().getTrainDimensions()];
 		Arrays.fill(patchShapeData, config().getTrainPatchShape());
 		Dimensions patch_shape = new FinalDimensions(patchShapeData);
-		N2VDataWrapper<FloatType> valData = new N2VDataWrapper<>(input().getValidationX(),
-				Math.min(config().getTrainBatchSize(), input().getValidationX().size()),
+		N2VDataWrapper<FloatType> valData = new N2VDataWrapper<>(tileSource(input().getValidationX(), input().getMappedValidationX()), new FloatType(),
+				validationBatchSize(augment),
 				n2v_perc_pix, patch_shape, config().getNeighborhoodRadius(),
-				N2VDataWrapper::uniform_withCP);
+				config().getValueManipulator().consumer(config().getNeighborhoodRadius()),
+				N2VRandom.derive(config().getSeed(), N2VRandom.VALIDATION_DATA));
+		valData.setExecutor(dataPool, config().getNumDataThreads());
+		valData.setAugmentation(augment);
 
-		List<Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>>> validationDataList = new ArrayList<>();
+		validationPreviewInput = valData.getItem(0).getFirst();
+		List<TrainingBatch> validationDataList = new ArrayList<>();
 		for (int i = 0; i < valData.numBatches(); i++) {
-			validationDataList.add(valData.getItem(i));
+			validationDataList.add(valData.getTensorBatch(i, i));
 		}
+		valData.dispose();
 		return validationDataList;
 	}
 
 	private void normalize() {
 		FloatType mean = outputHandler.getMean();
 		FloatType stdDev = outputHandler.getStdDev();
-		mean.set(opService.stats().mean(Views.iterable(Views.stack(input().getX()))).getRealFloat());
-		stdDev.set(opService.stats().stdDev(Views.iterable(Views.stack(input().getX()))).getRealFloat());
+		if(resumeState != null) {
+			// a resumed training keeps the normalization of the first run
+			mean.set(resumeState.mean);
+			stdDev.set(resumeState.stdDev);
+		} else if(config().isPercentileNormalization()) {
+			// the percentile range is stored as mean and standard deviation of the affine normalization
+			QuantileSketch quantiles = input().getTrainingQuantiles();
+			float low = quantiles.quantile(config().getPercentileLow() / 100.);
+			float high = quantiles.quantile(config().getPercentileHigh() / 100.);
+			logService.info("percentile " + config().getPercentileLow() + ": " + low);
+			logService.info("percentile " + config().getPercentileHigh() + ": " + high);
+			mean.set(low);
+			stdDev.set(high > low ? high - low : 1);
+		} else {
+			PixelStatistics statistics = input().getTrainingStatistics();
+			mean.set((float) statistics.getMean());
+			stdDev.set((float) statistics.getStdDev());
+		}
 		logService.info("mean: " + mean.get());
 		logService.info("stdDev: " + stdDev.get());
 
+		// the off-heap tiles are normalized while they are copied, lazily normalized tiles while patches are sampled
+		if(config().isStoreTilesOffHeap() || config().isNormalizeLazily()) return;
 		N2VUtils.normalize(input().getX(), mean, stdDev, opService);
 		N2VUtils.normalize(input().getValidationX(), mean, stdDev, opService);
 	}
 
-	private void runTrainingOp(Session sess, Tensor<Float> tensorWeights, Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>> item) {
-		Tensor tensorX = TensorFlowConverter.imageToTensor(item.getFirst(), getMapping());
-		Tensor tensorY = TensorFlowConverter.imageToTensor(item.getSecond(), getMapping());
+	// tiles mapped from the tile cache are used as they are instead of being copied
+	private TileSource tileSource(List<RandomAccessibleInterval<FloatType>> tiles, TileArena mapped) {
+		if(mapped != null && (config().isStoreTilesOffHeap() || config().isNormalizeLazily())) {
+			logService.info("Using " + tiles.size() + " tiles mapped from the tile cache.");
+			return mapped.normalized(outputHandler.getMean().get(), outputHandler.getStdDev().get());
+		}
+		if(!config().isStoreTilesOffHeap()) {
+			if(config().isNormalizeLazily()) return new RaiTileSource<>(tiles, outputHandler.getMean().get(), outputHandler.getStdDev().get());
+			return new RaiTileSource<>(tiles);
+		}
+		TileArena arena = TileArena.create(tiles, config().getTrainDimensions(),
+				outputHandler.getMean().get(), outputHandler.getStdDev().get());
+		logService.info("Stored " + tiles.size() + " tiles off-heap (" + arena.sizeInBytes() / (1024 * 1024) + " MB).");
+		return arena;
+	}
+
+	// index of the batch of the new batch size which contains the first sample of the given batch
+	static int rescaleBatchIndex(int batchIndex, int oldBatchSize, int newBatchSize) {
+		return (int) ((long) batchIndex * oldBatchSize / newBatchSize);
+	}
 
+	private int nextBatchIndex(long numSamples) {
+		if (batchIndex * config().getTrainBatchSize() + config().getTrainBatchSize() > numSamples - 1) {
+			batchIndex = 0;
+			logService.info("starting with index 0 of training batches");
+		}
+		return batchIndex++;
+	}
+
+	private void runTrainingOp(Session sess, Tensor<Float> tensorWeights, Tensor<Boolean> learningPhase, TrainingBatch batch) {
 		Session.Runner runner = sess.runner();
 
 		Tensor<Float> learningRate = Tensors.create(outputHandler.getCurrentLearningRate());
-		Tensor<Boolean> learningPhase = Tensors.create(true);
-		runner.feed(tensorXOpName, tensorX).feed(tensorYOpName, tensorY)
+		runner.feed(tensorXOpName, batch.getX()).feed(tensorYOpName, batch.getY())
 				.feed(learningPhaseOpName, learningPhase)
 				.feed(lrAssignOpName, learningRate)
 				.feed(sampleWeightsOpName, tensorWeights).addTarget(trainingTargetOpName);
@@ -449,9 +860,6 @@ public class N2VTraining implements ModelZooTraining {
 		outputHandler.setCurrentLearningRate(fetchedTensors.get(3).floatValue());
 
 		fetchedTensors.forEach(Tensor::close);
-		tensorX.close();
-		tensorY.close();
-		learningPhase.close();
 		learningRate.close();
 	}
 
@@ -459,6 +867,11 @@ public class N2VTraining implements ModelZooTraining {
 		onEpochDoneCallbacks.add(callback);
 	}
 
+	// called after each validation, the validation loss is available from the output handler
+	public void addCallbackOnValidationDone(TrainingCallback callback) {
+		onValidationDoneCallbacks.add(callback);
+	}
+
 	private int[] getMapping() {
 		if (config().getTrainDimensions() == 2) return new int[]{1, 2, 0, 3};
 		if (config().getTrainDimensions() == 3) return new int[]{1, 2, 3, 0, 4};
@@ -478,12 +891,61 @@ public class N2VTraining implements ModelZooTraining {
 	}
 
 	private Tensor<Float> makeWeightsTensor() {
-		float[] weightsdata = new float[config().getTrainBatchSize()];
+		return makeWeightsTensor(config().getTrainBatchSize());
+	}
+
+	private Tensor<Float> makeWeightsTensor(int batchSize) {
+		float[] weightsdata = new float[batchSize];
 		Arrays.fill(weightsdata, 1);
 		return Tensors.create(weightsdata);
 	}
 
-	private Float validate(Session sess, List<Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>>> validationData, Tensor tensorWeights) {
+	// validates, saves a checkpoint and notifies the validation callbacks, returns false if training was canceled meanwhile
+	private boolean runValidation(Session sess, List<TrainingBatch> validationData, Tensor<Float> validationWeights, Tensor<Boolean> learningPhase) {
+		Float validationLoss = validate(sess, validationData, validationWeights, learningPhase);
+		if (Thread.interrupted() || isCanceled()) return false;
+		validating = true;
+		try {
+			outputHandler.saveCheckpoint(sess, previewHandler.getExampleInput(), previewHandler.getExampleOutput());
+			outputHandler.setCurrentValidationLoss(validationLoss);
+			lastValidationStep = stepsFinished;
+			lastCheckpointTime = System.nanoTime();
+			onValidationDoneCallbacks.forEach(callback -> callback.accept(this));
+		} finally {
+			validating = false;
+		}
+		return true;
+	}
+
+	// steps which were validated have a checkpoint already
+	private boolean intermediateCheckpointDue() {
+		if (lastValidationStep == stepsFinished) return false;
+		int steps = config().getCheckpointStepInterval();
+		int minutes = config().getCheckpointMinuteInterval();
+		if (steps > 0 && stepsFinished % steps == 0) return true;
+		return minutes > 0 && System.nanoTime() - lastCheckpointTime >= TimeUnit.MINUTES.toNanos(minutes);
+	}
+
+	// fixed random subset of the validation batches, in their original order
+	private List<TrainingBatch> selectValidationBatches(List<TrainingBatch> validationData) {
+		int numBatches = config().getNumValidationBatches();
+		if (numBatches <= 0 || numBatches >= validationData.size()) return validationData;
+		int[] indices = new int[validationData.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		N2VRandom.shuffle(indices, N2VRandom.stream(config().getSeed(), N2VRandom.VALIDATION_SUBSET, 0));
+		int[] selected = Arrays.copyOf(indices, numBatches);
+		Arrays.sort(selected);
+		List<TrainingBatch> res = new ArrayList<>();
+		for (int index : selected) {
+			res.add(validationData.get(index));
+		}
+		logService.info("Validating on " + numBatches + " of " + validationData.size() + " validation batches.");
+		return res;
+	}
+
+	private Float validate(Session sess, List<TrainingBatch> validationData, Tensor tensorWeights, Tensor<Boolean> learningPhase) {
 
 		float avgLoss = 0;
 		float avgAbs = 0;
@@ -497,17 +959,13 @@ public class N2VTraining implements ModelZooTraining {
 				break;
 			}
 
-			Pair<RandomAccessibleInterval<FloatType>, RandomAccessibleInterval<FloatType>> item = validationData.get(i);
-
-			Tensor tensorX = TensorFlowConverter.imageToTensor(item.getFirst(), getMapping());
-			Tensor tensorY = TensorFlowConverter.imageToTensor(item.getSecond(), getMapping());
-			Tensor<Boolean> tensorLearningPhase = Tensors.create(false);
+			TrainingBatch item = validationData.get(i);
 
 			Session.Runner runner = sess.runner();
 
-			runner.feed(tensorXOpName, tensorX)
-					.feed(tensorYOpName, tensorY)
-					.feed(learningPhaseOpName, tensorLearningPhase)
+			runner.feed(tensorXOpName, item.getX())
+					.feed(tensorYOpName, item.getY())
+					.feed(learningPhaseOpName, learningPhase)
 					.feed(sampleWeightsOpName, tensorWeights)
 					.addTarget(validationTargetOpName);
 			runner.fetch(lossOpName);
@@ -525,13 +983,10 @@ public class N2VTraining implements ModelZooTraining {
 				Tensor outputTensor = fetchedTensors.get(3);
 				RandomAccessibleInterval<FloatType> output = TensorFlowConverter.tensorToImage(outputTensor, getMapping());
 				previewHandler.update(
-						denormalize(item.getFirst()), denormalize(output), headless(), isStopped() || isCanceled());
+						denormalize(validationPreviewInput), denormalize(output), headless(), isStopped() || isCanceled());
 //			updateHistoryImage(output);
 			}
 			fetchedTensors.forEach(Tensor::close);
-			tensorX.close();
-			tensorY.close();
-			tensorLearningPhase.close();
 		}
 
 		if(!isCanceled()) {
@@ -550,6 +1005,60 @@ public class N2VTraining implements ModelZooTraining {
 		return TrainUtils.denormalizeConverter(item, outputHandler.getMean(), outputHandler.getStdDev());
 	}
 
+	// state of the training loop which is not stored in the TensorFlow variables, null before training started.
+	// Only called on the training thread, which changes the shuffle and prefetcher state.
+	TrainingState captureState() {
+		N2VDataWrapper<FloatType> data = currentTrainingData;
+		BatchPrefetcher prefetcher = currentPrefetcher;
+		if (data == null || prefetcher == null) return null;
+		TrainingState state = new TrainingState();
+		state.seed = config().getSeed();
+		state.batchSize = config().getTrainBatchSize();
+		state.patchShape = (int) config().getTrainPatchShape();
+		state.mean = outputHandler.getMean().get();
+		state.stdDev = outputHandler.getStdDev().get();
+		state.epoch = currentEpoch;
+		state.stepsFinished = stepsFinished;
+		state.shuffles = data.getNumShuffles();
+		state.batchStep = prefetcher.nextStep();
+		int nextIndex = prefetcher.nextIndex();
+		state.batchIndex = nextIndex >= 0 ? nextIndex : batchIndex;
+		state.learningRate = outputHandler.getCurrentLearningRate();
+		state.lastValidationStep = lastValidationStep;
+		state.validationLoss = outputHandler.getCurrentValidationLoss();
+		state.validationPending = validating && lastValidationStep != stepsFinished;
+		reduceLearningRate.saveState(state);
+		if (earlyStopping != null) earlyStopping.saveState(state);
+		return state;
+	}
+
+	// epoch in which training was stopped early, 0 if it was not
+	public int getStoppedEpoch() {
+		return stoppedEpoch;
+	}
+
+	void setStoppedEpoch(int epoch) {
+		stoppedEpoch = epoch;
+	}
+
+	// snapshots all variables of the current session as the best weights of early stopping
+	void saveBestWeights() {
+		outputHandler.saveBestWeights(session);
+	}
+
+	// restores all variables from the snapshot of saveBestWeights and stops training,
+	// the restored variables are stored in the checkpoint saved on stop
+	void stopTrainingWithBestWeights(float validationLoss) {
+		if (!stopTraining && session != null) {
+			File prefix = outputHandler.getBestWeights();
+			try (Tensor<String> path = Tensors.create(prefix.getAbsolutePath())) {
+				session.runner().feed("save/Const", path).addTarget("save/restore_all").run();
+			}
+			outputHandler.setCurrentValidationLoss(validationLoss);
+		}
+		stopTraining();
+	}
+
 	public int getStepsFinished() {
 		return stepsFinished;
 	}
@@ -599,10 +1108,20 @@ public class N2VTraining implements ModelZooTraining {
 			if (getDialog() != null) dialog.dispose();
 			return;
 		}
+		if (getDialog() != null) getDialog().setTaskDone(1);
+		// called from a training callback, the training loop ends by itself
+		if (Thread.currentThread() == trainingThread) {
+			stopTraining = true;
+			saveStopCheckpoint();
+			return;
+		}
+		// the training state is read and changed by the training thread, so it saves the checkpoint at the next step
+		if (session != null) {
+			stopCheckpointPending = true;
+			stopTraining = true;
+			return;
+		}
 		stopTraining = true;
-		getDialog().setTaskDone(1);
-		if (session != null)
-			outputHandler.saveCheckpoint(session, previewHandler.getExampleInput(), previewHandler.getExampleOutput());
 		if (future != null) {
 			future.cancel(false);
 		}
@@ -611,6 +1130,12 @@ public class N2VTraining implements ModelZooTraining {
 		}
 	}
 
+	private void saveStopCheckpoint() {
+		stopCheckpointPending = false;
+		if (session != null)
+			outputHandler.saveCheckpoint(session, previewHandler.getExampleInput(), previewHandler.getExampleOutput());
+	}
+
 	@Override
 	public void cancel() {
 		canceled = true;
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+// Resident memory of this process including native TensorFlow allocations, only available on Linux
+class ProcessMemory {
+
+	private static final File status = new File("/proc/self/status");
+	private static final File clearRefs = new File("/proc/self/clear_refs");
+
+	static boolean isAvailable() {
+		return status.canRead();
+	}
+
+	// peak resident set size in bytes since the start of the process or the last reset, -1 if unknown
+	static long peakResidentBytes() {
+		return readStatus("VmHWM:");
+	}
+
+	static long residentBytes() {
+		return readStatus("VmRSS:");
+	}
+
+	// resets the peak resident set size to the current one, supported since Linux 4.0
+	static boolean resetPeak() {
+		try (FileWriter writer = new FileWriter(clearRefs)) {
+			writer.write("5");
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static long readStatus(String key) {
+		if(!isAvailable()) return -1;
+		try {
+			List<String> lines = Files.readAllLines(status.toPath(), StandardCharsets.UTF_8);
+			for (String line : lines) {
+				if(line.startsWith(key)) {
+					String[] parts = line.substring(key.length()).trim().split("\\s+");
+					return Long.parseLong(parts[0]) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+class RaiTileSource<T extends RealType<T>> implements TileSource {
+
+	private final List<RandomAccessibleInterval<T>> tiles;
+	private final float mean;
+	private final float stdDev;
+
+	RaiTileSource(List<RandomAccessibleInterval<T>> tiles) {
+		this(tiles, 0, 1);
+	}
+
+	// the raw tiles are normalized while the patches are copied
+	RaiTileSource(List<RandomAccessibleInterval<T>> tiles, float mean, float stdDev) {
+		this.tiles = tiles;
+		this.mean = mean;
+		this.stdDev = stdDev;
+	}
+
+	@Override
+	public int numTiles() {
+		return tiles.size();
+	}
+
+	@Override
+	public long dimension(int tile, int d) {
+		return tiles.get(tile).dimension(d);
+	}
+
+	@Override
+	public void copyPatch(int tile, long[] min, int[] patchDims, float[] dest) {
+		RandomAccessibleInterval<T> source = tiles.get(tile);
+		// additional dimensions of the tile (e.g. batch and channel) have size 1
+		long[] start = new long[source.numDimensions()];
+		long[] end = new long[source.numDimensions()];
+		for (int d = 0; d < patchDims.length; d++) {
+			start[d] = min[d];
+			end[d] = min[d] + patchDims[d] - 1;
+		}
+		Cursor<T> inCursor = Views.flatIterable(Views.interval(source, new FinalInterval(start, end))).cursor();
+		int i = 0;
+		while(inCursor.hasNext()) {
+			dest[i++] = (inCursor.next().getRealFloat() - mean) / stdDev;
+		}
+	}
+
+}
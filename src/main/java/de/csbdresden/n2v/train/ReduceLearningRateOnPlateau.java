@@ -85,6 +85,18 @@ public class ReduceLearningRateOnPlateau {
 		return cooldown_counter > 0;
 	}
 
+	void saveState(TrainingState state) {
+		state.plateauBest = best;
+		state.plateauWait = wait;
+		state.plateauCooldown = cooldown_counter;
+	}
+
+	void restoreState(TrainingState state) {
+		best = state.plateauBest;
+		wait = state.plateauWait;
+		cooldown_counter = state.plateauCooldown;
+	}
+
 	private void reset() {
 		monitorOp = this::monitorOp1;
 		best = Float.MAX_VALUE;
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.framework.ConfigProto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Thread pool sizes of a TensorFlow session, 0 lets TensorFlow choose
+class SessionThreads {
+
+	final int intraOp;
+	final int interOp;
+
+	SessionThreads(int intraOp, int interOp) {
+		this.intraOp = intraOp;
+		this.interOp = interOp;
+	}
+
+	boolean isDefault() {
+		return intraOp <= 0 && interOp <= 0;
+	}
+
+	byte[] toConfigProto() {
+		ConfigProto.Builder config = ConfigProto.newBuilder();
+		if(intraOp > 0) config.setIntraOpParallelismThreads(intraOp);
+		if(interOp > 0) config.setInterOpParallelismThreads(interOp);
+		return config.build().toByteArray();
+	}
+
+	// every session of the training graph is created with the same thread settings
+	Session createSession(Graph graph) {
+		if (isDefault()) return new Session(graph);
+		return new Session(graph, toConfigProto());
+	}
+
+	// settings tried by the autotuner, the cores not used by the data threads are split between the pools
+	static List<SessionThreads> candidates(int numCores, int numDataThreads) {
+		List<SessionThreads> res = new ArrayList<>();
+		res.add(new SessionThreads(0, 0));
+		int free = Math.max(1, numCores - Math.max(0, numDataThreads - 1));
+		for (int intraOp : new int[]{numCores, free, free / 2, free / 4}) {
+			for (int interOp = 1; interOp <= 2; interOp++) {
+				SessionThreads candidate = new SessionThreads(intraOp, interOp);
+				if(intraOp >= 1 && !res.contains(candidate)) res.add(candidate);
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof SessionThreads)) return false;
+		SessionThreads other = (SessionThreads) o;
+		return intraOp == other.intraOp && interOp == other.interOp;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * intraOp + interOp;
+	}
+
+	@Override
+	public String toString() {
+		if(isDefault()) return "TensorFlow default";
+		return "intra-op threads: " + intraOp + ", inter-op threads: " + interOp;
+	}
+}
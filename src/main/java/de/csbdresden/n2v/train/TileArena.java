@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// Normalized tiles stored back to back in large float buffers outside of the JVM heap.
+// A tile never spans two chunks, each tile is addressed by its chunk, offset and dimensions.
+// The chunks can also be mapped from a tile cache file, raw tiles are normalized while patches are copied.
+class TileArena implements TileSource {
+
+	static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE / Float.BYTES;
+
+	private final List<FloatBuffer> chunks;
+	private final int numDimensions;
+	private final int[] chunkIndices;
+	private final int[] offsets;
+	private final int[] dims;
+	private final float mean;
+	private final float stdDev;
+
+	TileArena(List<FloatBuffer> chunks, int numDimensions, int[] chunkIndices, int[] offsets, int[] dims) {
+		this(chunks, numDimensions, chunkIndices, offsets, dims, 0, 1);
+	}
+
+	private TileArena(List<FloatBuffer> chunks, int numDimensions, int[] chunkIndices, int[] offsets, int[] dims, float mean, float stdDev) {
+		this.chunks = chunks;
+		this.numDimensions = numDimensions;
+		this.chunkIndices = chunkIndices;
+		this.offsets = offsets;
+		this.dims = dims;
+		this.mean = mean;
+		this.stdDev = stdDev;
+	}
+
+	static <T extends RealType<T>> TileArena create(List<RandomAccessibleInterval<T>> tiles, int numDimensions, float mean, float stdDev) {
+		int[] dims = new int[tiles.size() * numDimensions];
+		for (int i = 0; i < tiles.size(); i++) {
+			for (int d = 0; d < numDimensions; d++) {
+				dims[i * numDimensions + d] = (int) tiles.get(i).dimension(d);
+			}
+		}
+		int[] chunkIndices = new int[tiles.size()];
+		int[] offsets = new int[tiles.size()];
+		List<Integer> chunkSizes = layout(dims, numDimensions, chunkIndices, offsets);
+		List<FloatBuffer> chunks = new ArrayList<>();
+		for (int size : chunkSizes) {
+			chunks.add(ByteBuffer.allocateDirect(size * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer());
+		}
+		TileArena arena = new TileArena(chunks, numDimensions, chunkIndices, offsets, dims);
+		IntStream.range(0, tiles.size()).parallel().forEach(i -> arena.write(i, tiles.get(i), mean, stdDev));
+		return arena;
+	}
+
+	// assigns chunk and offset to each tile, returns the sizes of the chunks
+	static List<Integer> layout(int[] dims, int numDimensions, int[] chunkIndices, int[] offsets) {
+		List<Integer> chunkSizes = new ArrayList<>();
+		int chunkSize = 0;
+		for (int i = 0; i < chunkIndices.length; i++) {
+			int tileSize = 1;
+			for (int d = 0; d < numDimensions; d++) {
+				tileSize *= dims[i * numDimensions + d];
+			}
+			if (chunkSize > 0 && (long) chunkSize + tileSize > MAX_CHUNK_SIZE) {
+				chunkSizes.add(chunkSize);
+				chunkSize = 0;
+			}
+			chunkIndices[i] = chunkSizes.size();
+			offsets[i] = chunkSize;
+			chunkSize += tileSize;
+		}
+		if (chunkSize > 0) chunkSizes.add(chunkSize);
+		return chunkSizes;
+	}
+
+	// the same tiles, normalized while patches are copied
+	TileArena normalized(float mean, float stdDev) {
+		return new TileArena(chunks, numDimensions, chunkIndices, offsets, dims, mean, stdDev);
+	}
+
+	// the given tiles in the given order, sharing the chunks of this arena
+	TileArena select(int[] tiles) {
+		int[] selectedChunks = new int[tiles.length];
+		int[] selectedOffsets = new int[tiles.length];
+		int[] selectedDims = new int[tiles.length * numDimensions];
+		for (int i = 0; i < tiles.length; i++) {
+			selectedChunks[i] = chunkIndices[tiles[i]];
+			selectedOffsets[i] = offsets[tiles[i]];
+			System.arraycopy(dims, tiles[i] * numDimensions, selectedDims, i * numDimensions, numDimensions);
+		}
+		return new TileArena(chunks, numDimensions, selectedChunks, selectedOffsets, selectedDims, mean, stdDev);
+	}
+
+	// a view of the stored pixels of a tile, no pixels are copied
+	RandomAccessibleInterval<FloatType> view(int tile) {
+		long[] tileDims = new long[numDimensions];
+		for (int d = 0; d < numDimensions; d++) {
+			tileDims[d] = dims[tile * numDimensions + d];
+		}
+		return ArrayImgs.floats(new BufferAccess(chunks.get(chunkIndices[tile]), offsets[tile]), tileDims);
+	}
+
+	void write(int tile, RandomAccessibleInterval<? extends RealType<?>> source, float mean, float stdDev) {
+		FloatBuffer chunk = chunks.get(chunkIndices[tile]);
+		int index = offsets[tile];
+		Cursor<? extends RealType<?>> cursor = Views.flatIterable(source).cursor();
+		while (cursor.hasNext()) {
+			chunk.put(index++, (cursor.next().getRealFloat() - mean) / stdDev);
+		}
+	}
+
+	long sizeInBytes() {
+		long res = 0;
+		for (FloatBuffer chunk : chunks) {
+			res += (long) chunk.capacity() * Float.BYTES;
+		}
+		return res;
+	}
+
+	@Override
+	public int numTiles() {
+		return offsets.length;
+	}
+
+	@Override
+	public long dimension(int tile, int d) {
+		return dims[tile * numDimensions + d];
+	}
+
+	@Override
+	public void copyPatch(int tile, long[] min, int[] patchDims, float[] dest) {
+		FloatBuffer chunk = chunks.get(chunkIndices[tile]).duplicate();
+		int dimX = dims[tile * numDimensions];
+		int dimY = dims[tile * numDimensions + 1];
+		int depth = numDimensions > 2 ? patchDims[2] : 1;
+		int minZ = numDimensions > 2 ? (int) min[2] : 0;
+		int i = 0;
+		for (int z = 0; z < depth; z++) {
+			for (int y = 0; y < patchDims[1]; y++) {
+				chunk.position(offsets[tile] + ((minZ + z) * dimY + (int) min[1] + y) * dimX + (int) min[0]);
+				chunk.get(dest, i, patchDims[0]);
+				i += patchDims[0];
+			}
+		}
+		if(mean == 0 && stdDev == 1) return;
+		for (int j = 0; j < i; j++) {
+			dest[j] = (dest[j] - mean) / stdDev;
+		}
+	}
+
+	private static class BufferAccess implements FloatAccess {
+
+		private final FloatBuffer buffer;
+		private final int offset;
+
+		BufferAccess(FloatBuffer buffer, int offset) {
+			this.buffer = buffer;
+			this.offset = offset;
+		}
+
+		@Override
+		public float getValue(int index) {
+			return buffer.get(offset + index);
+		}
+
+		@Override
+		public void setValue(int index, float value) {
+			buffer.put(offset + index, value);
+		}
+	}
+
+}
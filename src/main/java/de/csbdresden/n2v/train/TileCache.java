@@ -0,0 +1,230 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Stores the tiles generated from the images of a folder, so they can be mapped from disk
+// instead of being read and tiled again when the same folder is used for training again.
+// The tiles are stored in the order they are extracted, before they are shuffled with the seed and split
+// into training and validation tiles, so the same file is reused for any seed and validation amount.
+// Files which were not used recently are deleted when the cache grows beyond its maximum size.
+// The tiles read from the cache are views of the mapped file, the mappings are kept as long as the cache.
+// Layout (little endian): magic, version, number of images, number of tiles, number of dimensions,
+// number of tiles per image, tile dimensions, tile pixels.
+class TileCache {
+
+	static final int MAGIC = 0x4e325654;
+	static final int VERSION = 3;
+	private static final int HEADER_SIZE = 20;
+	static final String EXTENSION = ".n2vtiles";
+
+	// bytes from the start and the end of each file included in the key
+	private static final int SAMPLE_BYTES = 64 * 1024;
+
+	private final File directory;
+	private final long maxBytes;
+	private final List<MappedByteBuffer> mappings = new ArrayList<>();
+
+	static class Entry {
+		final int[] tilesPerImage;
+		final TileArena tiles;
+
+		Entry(int[] tilesPerImage, TileArena tiles) {
+			this.tilesPerImage = tilesPerImage;
+			this.tiles = tiles;
+		}
+	}
+
+	TileCache(File directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	// the tiles only depend on the input files and the tiling parameters
+	static String key(File[] files, int trainDimensions, long patchShape) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		buffer.putInt(VERSION).putInt(trainDimensions).putLong(patchShape);
+		update(digest, buffer);
+		for (File file : files) {
+			digest.update(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+			buffer.putLong(file.length()).putLong(file.lastModified());
+			update(digest, buffer);
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				sample(digest, in, 0);
+				sample(digest, in, Math.max(SAMPLE_BYTES, in.length() - SAMPLE_BYTES));
+			}
+		}
+		StringBuilder res = new StringBuilder();
+		for (byte b : digest.digest()) {
+			res.append(String.format("%02x", b));
+		}
+		return res.toString();
+	}
+
+	private static void update(MessageDigest digest, ByteBuffer buffer) {
+		buffer.flip();
+		digest.update(buffer);
+		buffer.clear();
+	}
+
+	private static void sample(MessageDigest digest, RandomAccessFile in, long position) throws IOException {
+		if(position >= in.length()) return;
+		byte[] bytes = new byte[(int) Math.min(SAMPLE_BYTES, in.length() - position)];
+		in.seek(position);
+		in.readFully(bytes);
+		digest.update(bytes);
+	}
+
+	File getFile(String key) {
+		return new File(directory, key + EXTENSION);
+	}
+
+	// returns null if there is no cache file of the current version for this key
+	Entry read(String key) throws IOException {
+		File file = getFile(key);
+		if(!file.exists()) return null;
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+			if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) return null;
+			int numImages = header.getInt();
+			int numTiles = header.getInt();
+			int numDimensions = header.getInt();
+			int[] tilesPerImage = new int[numImages];
+			int[] dims = new int[numTiles * numDimensions];
+			long position = HEADER_SIZE;
+			channel.map(FileChannel.MapMode.READ_ONLY, position, (long) numImages * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(tilesPerImage);
+			position += (long) numImages * Integer.BYTES;
+			channel.map(FileChannel.MapMode.READ_ONLY, position, (long) dims.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dims);
+			position += (long) dims.length * Integer.BYTES;
+			// the pixels are mapped in chunks of whole tiles, as a single mapping is limited to 2 GB
+			int[] chunkIndices = new int[numTiles];
+			int[] offsets = new int[numTiles];
+			List<Integer> chunkSizes = TileArena.layout(dims, numDimensions, chunkIndices, offsets);
+			List<FloatBuffer> chunks = new ArrayList<>();
+			for (int size : chunkSizes) {
+				MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) size * Float.BYTES);
+				synchronized (mappings) {
+					mappings.add(mapping);
+				}
+				chunks.add(mapping.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer());
+				position += (long) size * Float.BYTES;
+			}
+			// marks the file as recently used for the eviction
+			file.setLastModified(System.currentTimeMillis());
+			return new Entry(tilesPerImage, new TileArena(chunks, numDimensions, chunkIndices, offsets, dims));
+		}
+	}
+
+	// the tiles of all images back to back, tilesPerImage holds the number of tiles of each image
+	void write(String key, int[] tilesPerImage, List<RandomAccessibleInterval<FloatType>> tiles) throws IOException {
+		int numDimensions = tiles.isEmpty() ? 0 : tiles.get(0).numDimensions();
+		if(!directory.exists() && !directory.mkdirs()) throw new IOException("Could not create " + directory.getAbsolutePath());
+		File tmp = File.createTempFile("n2vtiles", ".tmp", directory);
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + (tilesPerImage.length + tiles.size() * numDimensions) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(tilesPerImage.length).putInt(tiles.size()).putInt(numDimensions);
+			for (int numTiles : tilesPerImage) {
+				header.putInt(numTiles);
+			}
+			for (RandomAccessibleInterval<FloatType> tile : tiles) {
+				for (int d = 0; d < numDimensions; d++) {
+					header.putInt((int) tile.dimension(d));
+				}
+			}
+			header.flip();
+			writeFully(channel, header);
+			for (RandomAccessibleInterval<FloatType> tile : tiles) {
+				ByteBuffer pixels = ByteBuffer.allocate((int) (Intervals.numElements(tile) * Float.BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+				Cursor<FloatType> cursor = Views.flatIterable(tile).cursor();
+				while (cursor.hasNext()) {
+					pixels.putFloat(cursor.next().get());
+				}
+				pixels.flip();
+				writeFully(channel, pixels);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp.toPath());
+			throw e;
+		}
+		Files.move(tmp.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		evict(getFile(key));
+	}
+
+	// deletes the least recently used cache files until the cache fits into its maximum size, the given file is kept
+	void evict(File keep) {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if(files == null) return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+		long size = keep.length();
+		for (File file : files) {
+			if(file.equals(keep)) continue;
+			long length = file.length();
+			size += length;
+			// files which are still mapped may not be deletable on some platforms, they are tried again next time
+			if(size > maxBytes && file.delete()) size -= length;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+// State of a training run which is not part of the TensorFlow variables, stored next to each checkpoint so the
+// training can be resumed at the exact step of the checkpoint. The optimizer state (Adam moments, iterations,
+// learning rate variable) is restored from the checkpoint variables.
+class TrainingState {
+
+	static final String FILE_NAME = "training_state.properties";
+
+	long seed;
+	int batchSize;
+	int patchShape;
+	float mean;
+	float stdDev;
+	int epoch;
+	int stepsFinished;
+	// number of times the training data was shuffled
+	int shuffles;
+	long batchStep;
+	int batchIndex;
+	float learningRate;
+	int lastValidationStep = -1;
+	// the checkpoint was saved by a validation before the validation callbacks ran, they run again after resuming
+	boolean validationPending;
+	float validationLoss = Float.MAX_VALUE;
+	float plateauBest;
+	int plateauWait;
+	int plateauCooldown;
+	float earlyStoppingBest = Float.MAX_VALUE;
+	int earlyStoppingWait;
+
+	// the file is replaced atomically
+	void write(File checkpointDir) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("seed", Long.toString(seed));
+		properties.setProperty("batchSize", Integer.toString(batchSize));
+		properties.setProperty("patchShape", Integer.toString(patchShape));
+		properties.setProperty("mean", Float.toString(mean));
+		properties.setProperty("stdDev", Float.toString(stdDev));
+		properties.setProperty("epoch", Integer.toString(epoch));
+		properties.setProperty("stepsFinished", Integer.toString(stepsFinished));
+		properties.setProperty("shuffles", Integer.toString(shuffles));
+		properties.setProperty("batchStep", Long.toString(batchStep));
+		properties.setProperty("batchIndex", Integer.toString(batchIndex));
+		properties.setProperty("learningRate", Float.toString(learningRate));
+		properties.setProperty("lastValidationStep", Integer.toString(lastValidationStep));
+		properties.setProperty("validationLoss", Float.toString(validationLoss));
+		properties.setProperty("validationPending", Boolean.toString(validationPending));
+		properties.setProperty("plateauBest", Float.toString(plateauBest));
+		properties.setProperty("plateauWait", Integer.toString(plateauWait));
+		properties.setProperty("plateauCooldown", Integer.toString(plateauCooldown));
+		properties.setProperty("earlyStoppingBest", Float.toString(earlyStoppingBest));
+		properties.setProperty("earlyStoppingWait", Integer.toString(earlyStoppingWait));
+		Path file = checkpointDir.toPath().resolve(FILE_NAME);
+		Path tmp = checkpointDir.toPath().resolve(FILE_NAME + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			properties.store(out, "N2V training state");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// returns null if the checkpoint directory has no training state
+	static TrainingState read(File checkpointDir) throws IOException {
+		Path file = checkpointDir.toPath().resolve(FILE_NAME);
+		if (!Files.exists(file)) return null;
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		TrainingState state = new TrainingState();
+		state.seed = Long.parseLong(properties.getProperty("seed"));
+		state.batchSize = Integer.parseInt(properties.getProperty("batchSize"));
+		state.patchShape = Integer.parseInt(properties.getProperty("patchShape"));
+		state.mean = Float.parseFloat(properties.getProperty("mean"));
+		state.stdDev = Float.parseFloat(properties.getProperty("stdDev"));
+		state.epoch = Integer.parseInt(properties.getProperty("epoch"));
+		state.stepsFinished = Integer.parseInt(properties.getProperty("stepsFinished"));
+		state.shuffles = Integer.parseInt(properties.getProperty("shuffles"));
+		state.batchStep = Long.parseLong(properties.getProperty("batchStep"));
+		state.batchIndex = Integer.parseInt(properties.getProperty("batchIndex"));
+		state.learningRate = Float.parseFloat(properties.getProperty("learningRate"));
+		state.lastValidationStep = Integer.parseInt(properties.getProperty("lastValidationStep"));
+		state.validationLoss = Float.parseFloat(properties.getProperty("validationLoss"));
+		state.validationPending = Boolean.parseBoolean(properties.getProperty("validationPending"));
+		state.plateauBest = Float.parseFloat(properties.getProperty("plateauBest"));
+		state.plateauWait = Integer.parseInt(properties.getProperty("plateauWait"));
+		state.plateauCooldown = Integer.parseInt(properties.getProperty("plateauCooldown"));
+		state.earlyStoppingBest = Float.parseFloat(properties.getProperty("earlyStoppingBest"));
+		state.earlyStoppingWait = Integer.parseInt(properties.getProperty("earlyStoppingWait"));
+		return state;
+	}
+
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Replacement values of the blind-spots. They read the neighborhood of a pixel directly
+// from the patch array, neighborhoods are shifted to stay inside of the patch.
+public enum ValueManipulator {
+
+	UNIFORM_WITH_CP("uniform_withCP") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			return patch[uniformNeighbor(dims, index, radius, random)];
+		}
+	},
+
+	UNIFORM_WITHOUT_CP("uniform_withoutCP") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			if (radius < 1) return patch[index];
+			int neighbor;
+			do {
+				neighbor = uniformNeighbor(dims, index, radius, random);
+			} while (neighbor == index);
+			return patch[neighbor];
+		}
+	},
+
+	NORMAL_WITH_CP("normal_withCP") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			return patch[normalNeighbor(dims, index, random)];
+		}
+	},
+
+	NORMAL_WITHOUT_CP("normal_withoutCP") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			int neighbor;
+			do {
+				neighbor = normalNeighbor(dims, index, random);
+			} while (neighbor == index);
+			return patch[neighbor];
+		}
+	},
+
+	MEAN("mean") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			float[] values = neighborhoodBuffer(radius, dims.length);
+			int count = collectNeighborhood(patch, dims, index, radius, values);
+			if (count == 0) return patch[index];
+			double sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += values[i];
+			}
+			return (float) (sum / count);
+		}
+	},
+
+	MEDIAN("median") {
+		@Override
+		float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random) {
+			float[] values = neighborhoodBuffer(radius, dims.length);
+			int count = collectNeighborhood(patch, dims, index, radius, values);
+			if (count == 0) return patch[index];
+			Arrays.sort(values, 0, count);
+			if (count % 2 == 1) return values[count / 2];
+			return (values[count / 2 - 1] + values[count / 2]) / 2;
+		}
+	};
+
+	// standard deviation of the neighbor offsets of the normal manipulators, as in the python implementation
+	private static final double NORMAL_SIGMA = 4;
+
+	private static final ThreadLocal<float[]> neighborhoodBuffers = ThreadLocal.withInitial(() -> new float[0]);
+
+	private final String name;
+
+	ValueManipulator(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public static ValueManipulator fromName(String name) {
+		for (ValueManipulator manipulator : values()) {
+			if (manipulator.name.equals(name)) return manipulator;
+		}
+		throw new IllegalArgumentException("Unknown value manipulator: " + name);
+	}
+
+	abstract float manipulate(float[] patch, int[] dims, int index, int radius, SplittableRandom random);
+
+	N2VDataWrapper.ValueManipulatorConsumer consumer(int radius) {
+		return (patch, dims, index, random) -> manipulate(patch, dims, index, radius, random);
+	}
+
+	private static int windowEnd(int pos, int dim, int radius) {
+		return Math.min(dim, Math.max(0, pos - radius) + radius * 2 + 1);
+	}
+
+	private static int windowStart(int end, int radius) {
+		return Math.max(0, end - radius * 2 - 1);
+	}
+
+	// Picks one of the 2 * radius + 1 positions of the window along each axis. This is the range of the original
+	// imglib2 implementation: its sub-patch view spanned start to start + 2 * radius + 1 inclusive, and nextInt(size - 1)
+	// left out the last position. Unlike the view, the window is clamped to the patch if the patch is smaller.
+	private static int uniformNeighbor(int[] dims, int index, int radius, SplittableRandom random) {
+		int res = 0;
+		int stride = 1;
+		for (int d = 0; d < dims.length; d++) {
+			int pos = (index / stride) % dims[d];
+			int end = windowEnd(pos, dims[d], radius);
+			int start = windowStart(end, radius);
+			res += (start + random.nextInt(end - start)) * stride;
+			stride *= dims[d];
+		}
+		return res;
+	}
+
+	private static int normalNeighbor(int[] dims, int index, SplittableRandom random) {
+		int res = 0;
+		int stride = 1;
+		for (int d = 0; d < dims.length; d++) {
+			int pos = (index / stride) % dims[d];
+			long neighbor = Math.round(pos + nextGaussian(random) * NORMAL_SIGMA);
+			res += (int) Math.max(0, Math.min(dims[d] - 1, neighbor)) * stride;
+			stride *= dims[d];
+		}
+		return res;
+	}
+
+	// polar method, SplittableRandom does not provide gaussian values
+	private static double nextGaussian(SplittableRandom random) {
+		double v1, v2, s;
+		do {
+			v1 = 2 * random.nextDouble() - 1;
+			v2 = 2 * random.nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		return v1 * Math.sqrt(-2 * Math.log(s) / s);
+	}
+
+	// copies the neighborhood of index without the center pixel into values, returns the number of copied values
+	private static int collectNeighborhood(float[] patch, int[] dims, int index, int radius, float[] values) {
+		int dimX = dims[0];
+		int dimY = dims[1];
+		int dimZ = dims.length > 2 ? dims[2] : 1;
+		int x = index % dimX;
+		int y = (index / dimX) % dimY;
+		int z = index / (dimX * dimY);
+		int endX = windowEnd(x, dimX, radius);
+		int endY = windowEnd(y, dimY, radius);
+		int endZ = windowEnd(z, dimZ, radius);
+		int count = 0;
+		for (int k = windowStart(endZ, radius); k < endZ; k++) {
+			for (int j = windowStart(endY, radius); j < endY; j++) {
+				int row = (k * dimY + j) * dimX;
+				for (int i = windowStart(endX, radius); i < endX; i++) {
+					if (row + i != index) values[count++] = patch[row + i];
+				}
+			}
+		}
+		return count;
+	}
+
+	private static float[] neighborhoodBuffer(int radius, int numDimensions) {
+		int size = 1;
+		for (int d = 0; d < numDimensions; d++) {
+			size *= radius * 2 + 1;
+		}
+		float[] buffer = neighborhoodBuffers.get();
+		if (buffer.length < size) {
+			buffer = new float[size];
+			neighborhoodBuffers.set(buffer);
+		}
+		return buffer;
+	}
+}
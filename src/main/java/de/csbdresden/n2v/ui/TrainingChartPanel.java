@@ -179,7 +179,10 @@ public class TrainingChartPanel extends JPanel {
 		}
 
 		averageLossData.add( new VectorDataItem( ( double ) nEpoch, averageLoss, 0.0, 0.0 ), true );
-		validationLossData.add( new VectorDataItem( ( double ) nEpoch, validationLoss, 0.0, 0.0 ), true );
+		// NaN if there was no validation in this epoch
+		if ( !Double.isNaN( validationLoss ) ) {
+			validationLossData.add( new VectorDataItem( ( double ) nEpoch, validationLoss, 0.0, 0.0 ), true );
+		}
 		chartPanel.repaint();
 
 	}
@@ -0,0 +1,116 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.List;
+
+// Streaming mean and variance (Welford), partial results of disjoint data are merged with the update of Chan et al.
+public class PixelStatistics {
+
+	private long count = 0;
+	private double mean = 0;
+	private double m2 = 0;
+
+	public PixelStatistics() {
+	}
+
+	public PixelStatistics(long count, double mean, double m2) {
+		this.count = count;
+		this.mean = mean;
+		this.m2 = m2;
+	}
+
+	public static <T extends RealType<T>> PixelStatistics of(RandomAccessibleInterval<T> img) {
+		PixelStatistics res = new PixelStatistics();
+		Cursor<T> cursor = Views.iterable(img).cursor();
+		while (cursor.hasNext()) {
+			res.add(cursor.next().getRealDouble());
+		}
+		return res;
+	}
+
+	// the images are processed in parallel
+	public static <T extends RealType<T>> PixelStatistics of(List<RandomAccessibleInterval<T>> imgs) {
+		return imgs.parallelStream().map(PixelStatistics::of).reduce(new PixelStatistics(), PixelStatistics::merge);
+	}
+
+	public void add(double value) {
+		count++;
+		double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+	}
+
+	public void add(PixelStatistics other) {
+		if(other.count == 0) return;
+		if(count == 0) {
+			count = other.count;
+			mean = other.mean;
+			m2 = other.m2;
+			return;
+		}
+		long total = count + other.count;
+		double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * count * other.count / total;
+		count = total;
+	}
+
+	private static PixelStatistics merge(PixelStatistics a, PixelStatistics b) {
+		PixelStatistics res = new PixelStatistics(a.count, a.mean, a.m2);
+		res.add(b);
+		return res;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public double getM2() {
+		return m2;
+	}
+
+	// sample variance, as computed by the stats ops
+	public double getVariance() {
+		return count > 1 ? m2 / (count - 1) : 0;
+	}
+
+	public double getStdDev() {
+		return Math.sqrt(getVariance());
+	}
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Mergeable streaming quantile sketch (KLL, Karnin, Lang and Liberty 2016).
+// Level h holds items of weight 2^h, a full level is sorted and every other item is promoted to the next level.
+// The rank error is roughly 1.7 / k.
+public class QuantileSketch {
+
+	public static final int DEFAULT_K = 2048;
+	private static final int MIN_CAPACITY = 8;
+
+	private final int k;
+	private float[][] levels = new float[1][];
+	private int[] sizes = new int[1];
+	private long count = 0;
+	private final SplittableRandom random = new SplittableRandom(0);
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	public QuantileSketch(int k) {
+		this.k = k;
+		levels[0] = new float[capacity(0)];
+	}
+
+	public static <T extends RealType<T>> QuantileSketch of(RandomAccessibleInterval<T> img) {
+		QuantileSketch res = new QuantileSketch();
+		Cursor<T> cursor = Views.iterable(img).cursor();
+		while (cursor.hasNext()) {
+			res.add(cursor.next().getRealFloat());
+		}
+		return res;
+	}
+
+	// the images are processed in parallel
+	public static <T extends RealType<T>> QuantileSketch of(List<RandomAccessibleInterval<T>> imgs) {
+		return imgs.parallelStream().map(QuantileSketch::of).reduce(new QuantileSketch(), QuantileSketch::merge);
+	}
+
+	public void add(float value) {
+		append(0, value);
+		count++;
+		if(sizes[0] >= capacity(0)) compress();
+	}
+
+	public void add(QuantileSketch other) {
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		count += other.count;
+		compress();
+	}
+
+	// the parallel reduction shares the identity between threads, partial results are merged into a new sketch
+	private static QuantileSketch merge(QuantileSketch a, QuantileSketch b) {
+		QuantileSketch res = new QuantileSketch(a.k);
+		res.add(a);
+		res.add(b);
+		return res;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	// value at quantile q (0 - 1) of all added values
+	public float quantile(double q) {
+		int numItems = 0;
+		for (int size : sizes) {
+			numItems += size;
+		}
+		if(numItems == 0) return Float.NaN;
+		float[] values = new float[numItems];
+		long[] weights = new long[numItems];
+		int n = 0;
+		for (int h = 0; h < levels.length; h++) {
+			for (int i = 0; i < sizes[h]; i++, n++) {
+				values[n] = levels[h][i];
+				weights[n] = 1L << h;
+			}
+		}
+		Integer[] order = new Integer[numItems];
+		for (int i = 0; i < numItems; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Float.compare(values[i1], values[i2]));
+		long totalWeight = 0;
+		for (long weight : weights) {
+			totalWeight += weight;
+		}
+		double rank = q * totalWeight;
+		long cumulative = 0;
+		for (int i = 0; i < numItems; i++) {
+			cumulative += weights[order[i]];
+			if(cumulative >= rank) return values[order[i]];
+		}
+		return values[order[numItems - 1]];
+	}
+
+	private int capacity(int level) {
+		int depth = levels.length - 1 - level;
+		return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(2. / 3., depth)));
+	}
+
+	private void append(int level, float value) {
+		if(level >= levels.length) {
+			int numLevels = levels.length;
+			levels = Arrays.copyOf(levels, level + 1);
+			sizes = Arrays.copyOf(sizes, level + 1);
+			// a merged sketch can skip empty levels
+			for (int h = numLevels; h <= level; h++) {
+				levels[h] = new float[MIN_CAPACITY];
+			}
+		}
+		if(sizes[level] == levels[level].length) {
+			levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+		}
+		levels[level][sizes[level]++] = value;
+	}
+
+	private void compress() {
+		for (int h = 0; h < levels.length; h++) {
+			if(sizes[h] < capacity(h)) continue;
+			float[] level = levels[h];
+			int size = sizes[h];
+			Arrays.sort(level, 0, size);
+			// an odd item stays on this level
+			int numCompacted = size - size % 2;
+			for (int i = random.nextBoolean() ? 1 : 0; i < numCompacted; i += 2) {
+				append(h + 1, level[i]);
+			}
+			if(size % 2 == 1) level[0] = level[size - 1];
+			sizes[h] = size % 2;
+		}
+	}
+}
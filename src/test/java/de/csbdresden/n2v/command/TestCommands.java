@@ -28,6 +28,7 @@
  */
 package de.csbdresden.n2v.command;
 
+import io.scif.services.DatasetIOService;
 import net.imagej.ImageJ;
 import net.imagej.modelzoo.ModelZooArchive;
 import net.imglib2.Cursor;
@@ -40,6 +41,8 @@ import org.scijava.command.CommandModule;
 import org.scijava.io.location.FileLocation;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
 
@@ -133,4 +136,53 @@ public class TestCommands {
 		ij.context().dispose();
 	}
 
+	@Test
+	public void testTrainBatchPredict2D() throws ExecutionException, InterruptedException, IOException {
+		ImageJ ij = new ImageJ();
+		ij.ui().setHeadless(true);
+		Img<FloatType> input = ij.op().create().img(new FinalDimensions(64, 64), new FloatType());
+		Random random = new Random();
+		input.forEach(pix -> pix.set(random.nextFloat()));
+
+		CommandModule res = ij.command().run(N2VTrainCommand.class, false,
+				"training", input,
+				"validation", input,
+				"numEpochs", 1,
+				"numStepsPerEpoch", 2,
+				"batchSize", 5,
+				"patchShape", 32,
+				"neighborhoodRadius", 2).get();
+		ModelZooArchive latestExport = (ModelZooArchive) res.getOutput("latestTrainedModel");
+		assertNotNull(latestExport);
+		File latestExportFile = new File(latestExport.getLocation().getURI());
+
+		File inputDir = Files.createTempDirectory("n2v-batch-input").toFile();
+		File outputDir = Files.createTempDirectory("n2v-batch-output").toFile();
+		DatasetIOService io = ij.get(DatasetIOService.class);
+		for (int i = 0; i < 3; i++) {
+			io.save(ij.dataset().create(input), new File(inputDir, "input" + i + ".tif").getAbsolutePath());
+		}
+
+		res = ij.command().run(N2VBatchPredictCommand.class, false,
+				"input", inputDir,
+				"output", outputDir,
+				"modelFile", latestExportFile,
+				"readerThreads", 2,
+				"writerThreads", 2,
+				"queueSize", 1).get();
+
+		assertEquals(3, res.getOutput("numPredicted"));
+		assertEquals(0, res.getOutput("numFailed"));
+		for (int i = 0; i < 3; i++) {
+			File output = new File(outputDir, "input" + i + ".tif");
+			assertTrue(output.exists());
+			RandomAccessibleInterval denoised = io.open(output.getAbsolutePath());
+			assertEquals(input.dimension(0), denoised.dimension(0));
+			assertEquals(input.dimension(1), denoised.dimension(1));
+		}
+
+		latestExportFile.delete();
+		ij.context().dispose();
+	}
+
 }
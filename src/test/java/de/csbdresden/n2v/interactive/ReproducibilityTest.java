@@ -94,7 +94,8 @@ public class ReproducibilityTest<T extends RealType<T>> {
 						.setBatchSize(64)
 						.setPatchShape(180)
 						.setPatchShape(60)
-						.setNeighborhoodRadius(2));
+						.setNeighborhoodRadius(2)
+						.setSeed(42));
 		training.input().addTrainingData(trainImg);
 		training.input().addValidationData(validateImg);
 		training.addCallbackOnEpochDone(this::calculatePSNR);
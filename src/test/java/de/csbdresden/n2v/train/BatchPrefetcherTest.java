@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchPrefetcherTest {
+
+	private static class Batch extends TrainingBatch {
+		final int value;
+		final long step;
+
+		Batch(int value, long step) {
+			super(null, null);
+			this.value = value;
+			this.step = step;
+		}
+
+		@Override
+		void close() {
+		}
+	}
+
+	@Test
+	public void testPauseAndRun() {
+		int[] data = {0, 1, 2, 3, 4, 5, 6, 7};
+		AtomicInteger cursor = new AtomicInteger();
+		for (int depth : new int[]{0, 1, 3}) {
+			cursor.set(0);
+			BatchPrefetcher prefetcher = new BatchPrefetcher((index, step) -> new Batch(data[index], step),
+					() -> cursor.getAndIncrement() % data.length, depth);
+			assertEquals(0, ((Batch) prefetcher.next()).value);
+			// batches prefetched before the shuffle are sampled again from the shuffled data
+			prefetcher.pauseAndRun(() -> {
+				for (int i = 0; i < data.length; i++) data[i] = data.length - 1 - i;
+			});
+			for (int i = 1; i < 5; i++) {
+				Batch batch = (Batch) prefetcher.next();
+				assertEquals(data.length - 1 - i, batch.value);
+				assertEquals(i, batch.step);
+			}
+			prefetcher.close();
+			for (int i = 0; i < data.length; i++) data[i] = i;
+		}
+	}
+
+	@Test
+	public void testHalvedBatchSize() {
+		AtomicInteger batchIndex = new AtomicInteger();
+		for (int depth : new int[]{0, 1, 3}) {
+			batchIndex.set(0);
+			BatchPrefetcher prefetcher = new BatchPrefetcher(Batch::new, batchIndex::getAndIncrement, depth);
+			prefetcher.next();
+			prefetcher.next();
+			// the third batch fails with batch size 8, it covers the samples 16 - 23
+			Batch failed = (Batch) prefetcher.next();
+			assertEquals(2, prefetcher.lastIndex());
+			long failedStep = prefetcher.nextStep() - 1;
+			assertEquals(2, failedStep);
+			prefetcher.close();
+			batchIndex.set(N2VTraining.rescaleBatchIndex(prefetcher.lastIndex(), 8, 4));
+			prefetcher = new BatchPrefetcher(Batch::new, batchIndex::getAndIncrement, depth, failedStep);
+			// the samples of the failed batch and the following ones are used with batch size 4
+			for (int i = 0; i < 4; i++) {
+				Batch batch = (Batch) prefetcher.next();
+				assertEquals(failed.value * 2 + i, batch.value);
+				assertEquals(failedStep + i, batch.step);
+			}
+			prefetcher.close();
+		}
+		assertEquals(2, N2VTraining.rescaleBatchIndex(1, 5, 2));
+	}
+
+}
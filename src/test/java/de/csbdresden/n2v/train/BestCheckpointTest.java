@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BestCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testPromote() throws IOException {
+		File latest = folder.newFolder("latest");
+		Path variables = latest.toPath().resolve("variables").resolve("variables.index");
+		Path sample = latest.toPath().resolve("sample_in.tif");
+		Files.createDirectories(variables.getParent());
+		Files.write(variables, new byte[]{1});
+		Files.write(sample, new byte[]{2});
+
+		BestCheckpoint best = new BestCheckpoint(folder.getRoot(), "best");
+		assertNull(best.acquire());
+		best.promote(latest);
+		File first = best.acquire();
+		Path bestVariables = first.toPath().resolve("variables").resolve("variables.index");
+		assertTrue(Files.isSameFile(variables, bestVariables));
+		assertFalse(Files.isSameFile(sample, first.toPath().resolve("sample_in.tif")));
+
+		// checkpoint files are replaced, not overwritten
+		Path tmp = variables.resolveSibling("variables.index.tmp");
+		Files.write(tmp, new byte[]{3});
+		Files.move(tmp, variables, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.write(sample, new byte[]{4});
+		assertArrayEquals(new byte[]{1}, Files.readAllBytes(bestVariables));
+		assertArrayEquals(new byte[]{2}, Files.readAllBytes(first.toPath().resolve("sample_in.tif")));
+
+		// the replaced snapshot is kept until it is released
+		best.promote(latest);
+		File second = best.acquire();
+		assertNotEquals(first, second);
+		assertTrue(first.exists());
+		best.release(first);
+		assertFalse(first.exists());
+		assertArrayEquals(new byte[]{3}, Files.readAllBytes(second.toPath().resolve("variables").resolve("variables.index")));
+		best.release(second);
+		assertTrue(second.exists());
+
+		best.dispose();
+		assertFalse(second.exists());
+	}
+
+}
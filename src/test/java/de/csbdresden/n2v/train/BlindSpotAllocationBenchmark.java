@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Measures the heap allocated and the time spent by N2VDataWrapper.getTensorBatch, which samples the patches
+// of a batch from the tiles, generates the blind-spots and masks them on the calling thread
+public class BlindSpotAllocationBenchmark {
+
+	public static void main(String... args) {
+		run(new long[]{128, 128}, 32, new long[]{64, 64}, 128);
+		run(new long[]{64, 128, 128}, 8, new long[]{32, 64, 64}, 16);
+	}
+
+	private static void run(long[] tileDims, int numTiles, long[] patchDims, int batchSize) {
+		SplittableRandom random = new SplittableRandom(1);
+		List<RandomAccessibleInterval<FloatType>> tiles = new ArrayList<>();
+		for (int i = 0; i < numTiles; i++) {
+			float[] pixels = new float[(int) Arrays.stream(tileDims).reduce(1, (a, b) -> a * b)];
+			for (int j = 0; j < pixels.length; j++) {
+				pixels[j] = (float) random.nextDouble();
+			}
+			tiles.add(ArrayImgs.floats(pixels, tileDims));
+		}
+		N2VDataWrapper<FloatType> wrapper = new N2VDataWrapper<>(tiles, batchSize, 1.6, new FinalInterval(patchDims), 5, N2VDataWrapper::uniform_withCP, 1);
+
+		// warm up
+		long step = 0;
+		for (int i = 0; i < 20; i++) {
+			wrapper.getTensorBatch(i % wrapper.numBatches(), step++).close();
+		}
+
+		int batches = 20;
+		long before = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < batches; i++) {
+			wrapper.getTensorBatch(i % wrapper.numBatches(), step++).close();
+		}
+		long time = System.nanoTime() - start;
+		long allocated = allocatedBytes() - before;
+
+		System.out.println("patch " + Arrays.toString(patchDims) + ", batch size " + batchSize + ": "
+				+ (allocated / batches) + " bytes allocated per batch, "
+				+ (time / batches / 1000) + " us per batch");
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRetention() throws IOException {
+		File latest = folder.newFolder("latest");
+		File directory = new File(folder.getRoot(), "checkpoints");
+
+		CheckpointStore store = new CheckpointStore(directory, 2, 1, 1, 0);
+		float[] losses = {0.5f, 0.2f, 0.4f, 0.3f, 0.6f};
+		for (int i = 0; i < losses.length; i++) {
+			saveVariables(latest, 100);
+			store.add(latest, (i + 1) * 10, losses[i]);
+		}
+		// last two and best one
+		assertEquals(Arrays.asList(20, 40, 50), steps(store.getRecords()));
+		assertEquals(20, store.best().step);
+		assertFalse(new File(directory, "checkpoint-000000010").exists());
+		assertTrue(store.getDirectory(store.best()).isDirectory());
+		assertEquals(Arrays.asList(20, 40, 50), steps(CheckpointStore.readIndex(directory)));
+
+		// the index is read again, older snapshots are deleted if the size limit is exceeded
+		store = new CheckpointStore(directory, 2, 1, 1, 250);
+		saveVariables(latest, 100);
+		store.add(latest, 60, 0.7f);
+		assertEquals(Arrays.asList(20, 60), steps(store.getRecords()));
+		assertEquals(0.2f, CheckpointStore.readIndex(directory).get(0).validationLoss, 0);
+
+		// intermediate checkpoints without validation are never the best ones and have their own quota
+		store = new CheckpointStore(directory, 1, 1, 1, 0);
+		saveVariables(latest, 100);
+		store.add(latest, 65, Float.NaN);
+		saveVariables(latest, 100);
+		store.add(latest, 68, Float.NaN);
+		assertEquals(Arrays.asList(20, 60, 68), steps(store.getRecords()));
+		assertEquals(20, store.best().step);
+		assertTrue(Float.isNaN(CheckpointStore.readIndex(directory).get(2).validationLoss));
+
+		// intermediate checkpoints are deleted first if the size limit is exceeded
+		store = new CheckpointStore(directory, 2, 1, 1, 250);
+		saveVariables(latest, 100);
+		store.add(latest, 70, 0.8f);
+		assertEquals(Arrays.asList(20, 70), steps(store.getRecords()));
+	}
+
+	@Test
+	public void testLinkedFilesCountedOnce() throws IOException {
+		File latest = folder.newFolder("latest");
+		File directory = new File(folder.getRoot(), "checkpoints");
+		saveVariables(latest, 100);
+		CheckpointStore store = new CheckpointStore(directory, 3, 1, 1, 150);
+		// the unchanged variables are linked into all snapshots
+		for (int step = 1; step <= 3; step++) {
+			store.add(latest, step, 1f / step);
+		}
+		assertEquals(Arrays.asList(1, 2, 3), steps(store.getRecords()));
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		File latest = folder.newFolder("latest");
+		File directory = new File(folder.getRoot(), "checkpoints");
+		CheckpointStore store = new CheckpointStore(directory, 2, 1, 1, 0);
+		saveVariables(latest, 100);
+		store.add(latest, 10, Float.NaN);
+		File replaced = store.getDirectory(store.getRecords().get(0));
+		saveVariables(latest, 120);
+		store.add(latest, 10, 0.5f);
+		// the index refers to the new snapshot before the old one is deleted
+		assertEquals(1, store.getRecords().size());
+		CheckpointStore.Record record = CheckpointStore.readIndex(directory).get(0);
+		assertEquals(0.5f, record.validationLoss, 0);
+		assertEquals(120, record.bytes);
+		assertTrue(store.getDirectory(record).isDirectory());
+		assertFalse(replaced.exists());
+		assertEquals(1, directory.listFiles(File::isDirectory).length);
+	}
+
+	// TensorFlow writes new variable files, the snapshots keep linking to the previous ones
+	private static void saveVariables(File checkpoint, int size) throws IOException {
+		Path variables = checkpoint.toPath().resolve("variables").resolve("variables.index");
+		Files.createDirectories(variables.getParent());
+		Files.deleteIfExists(variables);
+		Files.write(variables, new byte[size]);
+	}
+
+	private static List<Integer> steps(List<CheckpointStore.Record> records) {
+		return records.stream().map(record -> record.step).sorted().collect(Collectors.toList());
+	}
+
+}
@@ -29,13 +29,12 @@
 package de.csbdresden.n2v.train;
 
 import net.imagej.ImageJ;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
-import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
-import net.imglib2.type.NativeType;
-import net.imglib2.type.numeric.RealType;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
@@ -45,10 +44,17 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 // TODO this is crap
@@ -105,6 +111,133 @@ public class DataWrapperTest {
 //		_getitem2D(ij, new FinalInterval(45, 41, 4, 4));
 	}
 
+	@Test
+	public void test_n2vWrapper_seed() {
+		List<RandomAccessibleInterval<DoubleType>> X = getFirstHalfChannels(createData(new FinalInterval(40, 40, 8, 2)));
+		N2VDataWrapper<DoubleType> dw1 = new N2VDataWrapper<>(X, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		N2VDataWrapper<DoubleType> dw2 = new N2VDataWrapper<>(X, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		N2VDataWrapper<DoubleType> dw3 = new N2VDataWrapper<>(X, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 43);
+		assertTrue(equal(dw1.getItem(1), dw2.getItem(1)));
+		assertFalse(equal(dw1.getItem(1), dw3.getItem(1)));
+		dw1.on_epoch_end();
+		dw2.on_epoch_end();
+		assertTrue(equal(dw1.getItem(0), dw2.getItem(0)));
+	}
+
+	@Test
+	public void test_n2vWrapper_dispose() {
+		List<RandomAccessibleInterval<DoubleType>> X = getFirstHalfChannels(createData(new FinalInterval(40, 40, 8, 2)));
+		N2VDataWrapper<DoubleType> dw1 = new N2VDataWrapper<>(X, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		N2VDataWrapper<DoubleType> dw2 = new N2VDataWrapper<>(X, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		dw1.getItem(0);
+		dw1.dispose();
+		dw2.getItem(0);
+		assertTrue(equal(dw1.getItem(1), dw2.getItem(1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_n2vWrapper_batchTooLarge() {
+		List<RandomAccessibleInterval<DoubleType>> X = getFirstHalfChannels(createData(new FinalInterval(40, 40, 8, 2)));
+		N2VDataWrapper<DoubleType> dw = new N2VDataWrapper<>(X, 1 << 16, 1.6, new FinalInterval(256, 256), 5, N2VDataWrapper::uniform_withCP, 42);
+		dw.getItem(0);
+	}
+
+	@Test
+	public void test_n2vWrapper_parallel() {
+		List<RandomAccessibleInterval<DoubleType>> X = getFirstHalfChannels(createData(new FinalInterval(40, 40, 8, 2)));
+		N2VDataWrapper<DoubleType> serial = new N2VDataWrapper<>(X, 8, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		N2VDataWrapper<DoubleType> parallel = new N2VDataWrapper<>(X, 8, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		ForkJoinPool pool = new ForkJoinPool(3);
+		parallel.setExecutor(pool, 3);
+		try {
+			assertTrue(equal(serial.getItem(0), parallel.getItem(0)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void test_n2vWrapper_lazyNormalization() {
+		List<RandomAccessibleInterval<DoubleType>> X = getFirstHalfChannels(createData(new FinalInterval(40, 40, 8, 2)));
+		float mean = 0.3f;
+		float stdDev = 2.5f;
+		List<RandomAccessibleInterval<DoubleType>> normalized = new ArrayList<>();
+		for (RandomAccessibleInterval<DoubleType> tile : X) {
+			Img<DoubleType> res = ij.op().create().img(tile);
+			LoopBuilder.setImages(res, tile).forEachPixel((out, in) -> out.set(((float) in.get() - mean) / stdDev));
+			normalized.add(res);
+		}
+		N2VDataWrapper<DoubleType> eager = new N2VDataWrapper<>(normalized, 4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		N2VDataWrapper<DoubleType> lazy = new N2VDataWrapper<>(new RaiTileSource<>(X, mean, stdDev), new DoubleType(),
+				4, 1.6, new FinalInterval(32, 32), 5, N2VDataWrapper::uniform_withCP, 42);
+		assertTrue(equal(eager.getItem(0), lazy.getItem(0)));
+	}
+
+	private boolean equal(Pair<RandomAccessibleInterval<DoubleType>, RandomAccessibleInterval<DoubleType>> item1,
+	                      Pair<RandomAccessibleInterval<DoubleType>, RandomAccessibleInterval<DoubleType>> item2) {
+		return equal(item1.getFirst(), item2.getFirst()) && equal(item1.getSecond(), item2.getSecond());
+	}
+
+	private boolean equal(RandomAccessibleInterval<DoubleType> img1, RandomAccessibleInterval<DoubleType> img2) {
+		Cursor<DoubleType> cursor1 = Views.flatIterable(img1).cursor();
+		Cursor<DoubleType> cursor2 = Views.flatIterable(img2).cursor();
+		while (cursor1.hasNext()) {
+			if (cursor1.next().get() != cursor2.next().get()) return false;
+		}
+		return true;
+	}
+
+	@Test
+	public void test_transformXY() {
+		int[] dims = {4, 4, 2};
+		float[] patch = new float[32];
+		for (int i = 0; i < patch.length; i++) {
+			patch[i] = i;
+		}
+		Set<String> results = new HashSet<>();
+		for (int transform = 0; transform < 8; transform++) {
+			float[] res = new float[patch.length];
+			N2VDataWrapper.transformXY(patch, res, dims, transform);
+			results.add(Arrays.toString(res));
+			// z planes are transformed independently
+			for (int i = 0; i < 16; i++) {
+				assertEquals(res[i] + 16, res[i + 16], 0);
+			}
+			float[] sorted = res.clone();
+			Arrays.sort(sorted);
+			assertArrayEquals(patch, sorted, 0);
+		}
+		assertEquals(8, results.size());
+		float[] identity = new float[patch.length];
+		N2VDataWrapper.transformXY(patch, identity, dims, 0);
+		assertArrayEquals(patch, identity, 0);
+	}
+
+	@Test
+	public void test_uniform_withCP_neighborhood() {
+		int radius = 5;
+		int[] dims = {20, 13};
+		float[] patch = new float[dims[0] * dims[1]];
+		for (int i = 0; i < patch.length; i++) {
+			patch[i] = i;
+		}
+		SplittableRandom random = new SplittableRandom(42);
+		for (int index = 0; index < patch.length; index++) {
+			int x = index % dims[0];
+			int y = index / dims[0];
+			for (int k = 0; k < 10; k++) {
+				int res = (int) N2VDataWrapper.uniform_withCP(patch, dims, index, random);
+				int resX = res % dims[0];
+				int resY = res / dims[0];
+				// the neighborhood is shifted into the patch at the borders
+				assertTrue(Math.abs(resX - x) <= 2 * radius);
+				assertTrue(Math.abs(resY - y) <= 2 * radius);
+				if (x >= radius && x < dims[0] - radius) assertTrue(Math.abs(resX - x) <= radius);
+				if (y >= radius && y < dims[1] - radius) assertTrue(Math.abs(resY - y) <= radius);
+			}
+		}
+	}
+
 	private Img<DoubleType> createData(Interval interval) {
 		Img<DoubleType> res = ij.op().create().img(interval);
 		Random random = new Random();
@@ -112,9 +245,8 @@ public class DataWrapperTest {
 		return res;
 	}
 
-	public static <T extends RealType<T> & NativeType<T>> double random_neighbor_withCP_uniform(IntervalView<T> patch, Point coord) {
-		Random random = new Random();
-		return random.nextDouble();
+	public static float random_neighbor_withCP_uniform(float[] patch, int[] dims, int index, SplittableRandom random) {
+		return (float) random.nextDouble();
 	}
 
 	private void _getitem2D(Interval y_shape) {
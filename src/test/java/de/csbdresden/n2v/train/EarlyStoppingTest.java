@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EarlyStoppingTest {
+
+	@Test
+	public void testPatience() {
+		EarlyStopping earlyStopping = new EarlyStopping(3, 0.1f, true);
+		assertTrue(earlyStopping.update(1.0f));
+		// improvements smaller than minDelta are not counted
+		assertFalse(earlyStopping.update(0.95f));
+		assertFalse(earlyStopping.update(1.2f));
+		assertFalse(earlyStopping.isPlateau());
+		assertTrue(earlyStopping.update(0.8f));
+		assertFalse(earlyStopping.update(0.8f));
+		assertFalse(earlyStopping.update(0.75f));
+		assertFalse(earlyStopping.isPlateau());
+		assertFalse(earlyStopping.update(0.9f));
+		assertTrue(earlyStopping.isPlateau());
+		assertEquals(0.8f, earlyStopping.getBest(), 0);
+	}
+
+	@Test
+	public void testResume() {
+		EarlyStopping earlyStopping = new EarlyStopping(2, 0, true);
+		earlyStopping.update(1.0f);
+		earlyStopping.update(1.1f);
+		TrainingState state = new TrainingState();
+		earlyStopping.saveState(state);
+
+		EarlyStopping resumed = new EarlyStopping(2, 0, true);
+		resumed.restoreState(state);
+		assertEquals(1.0f, resumed.getBest(), 0);
+		assertFalse(resumed.isPlateau());
+		resumed.update(1.05f);
+		assertTrue(resumed.isPlateau());
+		// the best weights were saved before resuming, they are not restored
+		assertFalse(resumed.canRestoreBestWeights());
+	}
+
+	@Test
+	public void testRestoreBestWeights() {
+		EarlyStopping restoring = new EarlyStopping(1, 0, true);
+		assertFalse(restoring.canRestoreBestWeights());
+		restoring.update(1.0f);
+		restoring.update(1.0f);
+		assertTrue(restoring.isPlateau());
+		assertTrue(restoring.canRestoreBestWeights());
+		assertEquals(1.0f, restoring.getBest(), 0);
+		EarlyStopping keepLast = new EarlyStopping(1, 0, false);
+		keepLast.update(1.0f);
+		keepLast.update(1.0f);
+		assertTrue(keepLast.isPlateau());
+		assertFalse(keepLast.canRestoreBestWeights());
+	}
+
+}
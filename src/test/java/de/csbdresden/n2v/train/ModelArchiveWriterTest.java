@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ModelArchiveWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWrite() throws IOException {
+		File checkpoint = folder.newFolder("checkpoint");
+		byte[] graph = bytes(1000, 1);
+		byte[] variables = bytes(3 * 1024 * 1024 + 17, 2);
+		byte[] sample = bytes(100, 3);
+		write(checkpoint.toPath().resolve("saved_model.pb"), graph);
+		write(checkpoint.toPath().resolve("variables").resolve("variables.data-00000-of-00001"), variables);
+		write(checkpoint.toPath().resolve("sample_in.tif"), sample);
+		write(checkpoint.toPath().resolve("model.yaml"), new byte[]{0});
+		byte[] spec = "name: test".getBytes();
+
+		for (boolean compress : new boolean[]{true, false}) {
+			ModelArchiveWriter writer = new ModelArchiveWriter(compress);
+			File archive = folder.newFile();
+			writer.write(checkpoint, "bundle.zip", "model.yaml", spec, archive);
+			File bundle = folder.newFile();
+			try (ZipFile zip = new ZipFile(archive)) {
+				assertArrayEquals(spec, read(zip, "model.yaml"));
+				assertArrayEquals(sample, read(zip, "sample_in.tif"));
+				assertNull(zip.getEntry("saved_model.pb"));
+				assertEquals(ZipEntry.STORED, zip.getEntry("bundle.zip").getMethod());
+				Files.write(bundle.toPath(), read(zip, "bundle.zip"));
+			}
+			try (ZipFile zip = new ZipFile(bundle)) {
+				assertArrayEquals(graph, read(zip, "saved_model.pb"));
+				assertArrayEquals(variables, read(zip, "variables/variables.data-00000-of-00001"));
+				assertNotNull(zip.getEntry("variables/"));
+				assertEquals(compress ? ZipEntry.DEFLATED : ZipEntry.STORED, zip.getEntry("saved_model.pb").getMethod());
+				if (compress) assertTrue(zip.getEntry("saved_model.pb").getCompressedSize() < graph.length);
+			}
+		}
+	}
+
+	@Test
+	public void testWriteArchives() throws IOException {
+		File latest = folder.newFolder("latest");
+		File best = folder.newFolder("best");
+		write(latest.toPath().resolve("saved_model.pb"), bytes(1000, 1));
+		write(latest.toPath().resolve("variables").resolve("variables.index"), bytes(100, 2));
+		write(best.toPath().resolve("saved_model.pb"), bytes(1000, 1));
+		write(best.toPath().resolve("variables").resolve("variables.index"), bytes(100, 3));
+		byte[] spec = "name: test".getBytes();
+		ModelArchiveWriter writer = new ModelArchiveWriter(true);
+		File latestArchive = folder.newFile();
+		File bestArchive = folder.newFile();
+		writer.write(new ModelArchiveWriter.Archive(latest, "bundle.zip", "model.yaml", spec, latestArchive),
+				new ModelArchiveWriter.Archive(best, "bundle.zip", "model.yaml", spec, bestArchive));
+		assertArrayEquals(bytes(100, 2), read(bundle(latestArchive), "variables/variables.index"));
+		assertArrayEquals(bytes(100, 3), read(bundle(bestArchive), "variables/variables.index"));
+
+		// a changed file is written again
+		write(latest.toPath().resolve("variables").resolve("variables.index"), bytes(200, 4));
+		writer.write(latest, "bundle.zip", "model.yaml", spec, latestArchive);
+		assertArrayEquals(bytes(200, 4), read(bundle(latestArchive), "variables/variables.index"));
+	}
+
+	private File bundle(File archive) throws IOException {
+		File bundle = folder.newFile();
+		try (ZipFile zip = new ZipFile(archive)) {
+			Files.write(bundle.toPath(), read(zip, "bundle.zip"));
+		}
+		return bundle;
+	}
+
+	private static byte[] bytes(int size, int seed) {
+		// repeating random blocks, so the data compresses
+		byte[] block = new byte[256];
+		new Random(seed).nextBytes(block);
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) data[i] = block[i % block.length];
+		return data;
+	}
+
+	private static void write(Path path, byte[] data) throws IOException {
+		Files.createDirectories(path.getParent());
+		Files.write(path, data);
+	}
+
+	private static byte[] read(File archive, String name) throws IOException {
+		try (ZipFile zip = new ZipFile(archive)) {
+			return read(zip, name);
+		}
+	}
+
+	// checks size and checksum of the entry against the data read from it
+	private static byte[] read(ZipFile zip, String name) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		assertNotNull(name, entry);
+		try (InputStream in = zip.getInputStream(entry)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+			byte[] data = out.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			assertEquals(name, entry.getCrc(), crc.getValue());
+			assertEquals(name, entry.getSize(), data.length);
+			return data;
+		}
+	}
+
+}
@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class N2VConfigTest {
+
+	@Test
+	public void testValidationInterval() {
+		assertEquals(1, new N2VConfig().getValidationInterval());
+		assertEquals(3, new N2VConfig().setValidationInterval(3).getValidationInterval());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroValidationInterval() {
+		new N2VConfig().setValidationInterval(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeValidationInterval() {
+		new N2VConfig().setValidationInterval(-1);
+	}
+
+	@Test
+	public void testEarlyStopping() {
+		N2VConfig config = new N2VConfig().setEarlyStopping(5, 0.1f);
+		assertEquals(5, config.getEarlyStoppingPatience());
+		// the same default as the training commands
+		assertTrue(config.isRestoreBestWeights());
+		assertFalse(new N2VConfig().setEarlyStopping(5, 0.1f, false).isRestoreBestWeights());
+	}
+
+}
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+import org.tensorflow.framework.ConfigProto;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionThreadsTest {
+
+	@Test
+	public void testConfigProto() throws InvalidProtocolBufferException {
+		assertArrayEquals(new byte[0], new SessionThreads(0, 0).toConfigProto());
+		ConfigProto config = ConfigProto.parseFrom(new SessionThreads(8, 2).toConfigProto());
+		assertEquals(8, config.getIntraOpParallelismThreads());
+		assertEquals(2, config.getInterOpParallelismThreads());
+		config = ConfigProto.parseFrom(new SessionThreads(300, 0).toConfigProto());
+		assertEquals(300, config.getIntraOpParallelismThreads());
+		assertEquals(0, config.getInterOpParallelismThreads());
+	}
+
+	@Test
+	public void testCandidates() {
+		List<SessionThreads> candidates = SessionThreads.candidates(16, 5);
+		assertEquals(new SessionThreads(0, 0), candidates.get(0));
+		assertTrue(candidates.contains(new SessionThreads(16, 1)));
+		assertTrue(candidates.contains(new SessionThreads(12, 2)));
+		assertTrue(candidates.contains(new SessionThreads(3, 1)));
+		assertEquals(9, candidates.size());
+		assertEquals(3, SessionThreads.candidates(1, 1).size());
+	}
+
+}
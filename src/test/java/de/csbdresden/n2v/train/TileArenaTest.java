@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TileArenaTest {
+
+	@Test
+	public void testCopyPatch2D() {
+		// two 6x5 tiles, pixel value encodes tile, y and x
+		int[] dims = {6, 5, 6, 5};
+		TileArena arena = arena(dims, 2);
+		float[] patch = new float[3 * 2];
+		arena.copyPatch(1, new long[]{2, 3}, new int[]{3, 2}, patch);
+		assertArrayEquals(new float[]{132, 133, 134, 142, 143, 144}, patch, 0);
+		assertEquals(6, arena.dimension(0, 0));
+		assertEquals(5, arena.dimension(1, 1));
+	}
+
+	@Test
+	public void testCopyPatch3D() {
+		int[] dims = {4, 4, 3};
+		TileArena arena = arena(dims, 3);
+		float[] patch = new float[2 * 2 * 2];
+		arena.copyPatch(0, new long[]{1, 2, 1}, new int[]{2, 2, 2}, patch);
+		assertArrayEquals(new float[]{1021, 1022, 1031, 1032, 2021, 2022, 2031, 2032}, patch, 0);
+	}
+
+	@Test
+	public void testLayout() {
+		int tileSize = TileArena.MAX_CHUNK_SIZE / 2 + 1;
+		int[] dims = {tileSize, 1, tileSize, 1, 10, 1};
+		int[] chunks = new int[3];
+		int[] offsets = new int[3];
+		List<Integer> sizes = TileArena.layout(dims, 2, chunks, offsets);
+		assertArrayEquals(new int[]{0, 1, 1}, chunks);
+		assertArrayEquals(new int[]{0, 0, tileSize}, offsets);
+		assertEquals(2, sizes.size());
+		assertEquals(tileSize + 10, (int) sizes.get(1));
+	}
+
+	private static TileArena arena(int[] dims, int numDimensions) {
+		int numTiles = dims.length / numDimensions;
+		int[] chunks = new int[numTiles];
+		int[] offsets = new int[numTiles];
+		int size = TileArena.layout(dims, numDimensions, chunks, offsets).get(0);
+		FloatBuffer buffer = FloatBuffer.allocate(size);
+		for (int tile = 0; tile < numTiles; tile++) {
+			int dimX = dims[tile * numDimensions];
+			int dimY = dims[tile * numDimensions + 1];
+			int dimZ = numDimensions > 2 ? dims[tile * numDimensions + 2] : 1;
+			for (int z = 0; z < dimZ; z++) {
+				for (int y = 0; y < dimY; y++) {
+					for (int x = 0; x < dimX; x++) {
+						buffer.put(offsets[tile] + (z * dimY + y) * dimX + x, 1000 * z + 100 * tile + 10 * y + x);
+					}
+				}
+			}
+		}
+		return new TileArena(Collections.singletonList(buffer), numDimensions, chunks, offsets, dims);
+	}
+
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testKey() throws IOException {
+		File file = folder.newFile("img.tif");
+		Files.write(file.toPath(), new byte[]{1, 2, 3});
+		File[] files = {file};
+		String key = TileCache.key(files, 2, 64);
+		// the key does not depend on the seed or on how the tiles are split
+		assertEquals(key, TileCache.key(files, 2, 64));
+		assertNotEquals(key, TileCache.key(files, 3, 64));
+		assertNotEquals(key, TileCache.key(files, 2, 32));
+		Files.write(file.toPath(), new byte[]{1, 2, 4});
+		file.setLastModified(0);
+		assertNotEquals(key, TileCache.key(files, 2, 64));
+	}
+
+	@Test
+	public void testReadWrite() throws IOException {
+		TileCache cache = new TileCache(folder.newFolder(), Long.MAX_VALUE);
+		assertNull(cache.read("missing"));
+		RandomAccessibleInterval<FloatType> tile1 = ArrayImgs.floats(new float[]{1, 2, 3, 4, 5, 6}, 3, 2);
+		RandomAccessibleInterval<FloatType> tile2 = ArrayImgs.floats(new float[]{-1, 0.5f, 7, 8}, 2, 2);
+		cache.write("key", new int[]{2, 1}, Arrays.asList(tile1, tile2, tile1));
+		TileCache.Entry entry = cache.read("key");
+		assertArrayEquals(new int[]{2, 1}, entry.tilesPerImage);
+		assertEquals(3, entry.tiles.numTiles());
+		assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6}, pixels(entry.tiles.view(0)), 0);
+		assertArrayEquals(new float[]{-1, 0.5f, 7, 8}, pixels(entry.tiles.view(1)), 0);
+		assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6}, pixels(entry.tiles.view(2)), 0);
+		assertEquals(3, entry.tiles.view(0).dimension(0));
+		assertEquals(2, entry.tiles.view(0).dimension(1));
+	}
+
+	@Test
+	public void testMappedTiles() throws IOException {
+		TileCache cache = new TileCache(folder.newFolder(), Long.MAX_VALUE);
+		RandomAccessibleInterval<FloatType> tile1 = ArrayImgs.floats(new float[]{1, 2, 3, 4, 5, 6}, 3, 2);
+		RandomAccessibleInterval<FloatType> tile2 = ArrayImgs.floats(new float[]{-1, 0.5f, 7, 8}, 2, 2);
+		cache.write("key", new int[]{2}, Arrays.asList(tile1, tile2));
+		TileArena tiles = cache.read("key").tiles.select(new int[]{1, 0});
+		assertEquals(2, tiles.numTiles());
+		assertEquals(2, tiles.dimension(0, 0));
+		assertEquals(3, tiles.dimension(1, 0));
+		float[] patch = new float[4];
+		tiles.copyPatch(1, new long[]{1, 0}, new int[]{2, 2}, patch);
+		assertArrayEquals(new float[]{2, 3, 5, 6}, patch, 0);
+		// raw tiles are normalized while patches are copied
+		tiles.normalized(1, 2).copyPatch(0, new long[]{0, 0}, new int[]{2, 2}, patch);
+		assertArrayEquals(new float[]{-1, -0.25f, 3, 3.5f}, patch, 0);
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+		File directory = folder.newFolder();
+		RandomAccessibleInterval<FloatType> tile = ArrayImgs.floats(new float[100], 10, 10);
+		new TileCache(directory, Long.MAX_VALUE).write("a", new int[]{1}, Collections.singletonList(tile));
+		TileCache cache = new TileCache(directory, 2 * new File(directory, "a" + TileCache.EXTENSION).length());
+		cache.getFile("a").setLastModified(1000);
+		cache.write("b", new int[]{1}, Collections.singletonList(tile));
+		cache.getFile("b").setLastModified(2000);
+		// reading marks a file as recently used
+		cache.read("a");
+		cache.write("c", new int[]{1}, Collections.singletonList(tile));
+		assertTrue(cache.getFile("a").exists());
+		assertFalse(cache.getFile("b").exists());
+		assertTrue(cache.getFile("c").exists());
+		// the file which was just written is kept even if it exceeds the maximum size alone
+		TileCache small = new TileCache(directory, 0);
+		small.write("d", new int[]{1}, Collections.singletonList(tile));
+		assertTrue(small.getFile("d").exists());
+		assertFalse(small.getFile("a").exists());
+		assertFalse(small.getFile("c").exists());
+	}
+
+	private static float[] pixels(RandomAccessibleInterval<FloatType> img) {
+		List<Float> values = new ArrayList<>();
+		Cursor<FloatType> cursor = Views.flatIterable(img).cursor();
+		while (cursor.hasNext()) {
+			values.add(cursor.next().get());
+		}
+		float[] res = new float[values.size()];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = values.get(i);
+		}
+		return res;
+	}
+
+}
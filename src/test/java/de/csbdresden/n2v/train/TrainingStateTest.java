@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrainingStateTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadWrite() throws IOException {
+		File checkpoint = folder.newFolder();
+		assertNull(TrainingState.read(checkpoint));
+		TrainingState state = new TrainingState();
+		state.seed = -42;
+		state.batchSize = 64;
+		state.patchShape = 96;
+		state.mean = 0.1f;
+		state.stdDev = 1.7f;
+		state.epoch = 3;
+		state.stepsFinished = 701;
+		state.shuffles = 3;
+		state.batchStep = 703;
+		state.batchIndex = 5;
+		state.learningRate = 0.0004f / 3;
+		state.lastValidationStep = 700;
+		state.validationLoss = 0.123456789f;
+		state.validationPending = true;
+		state.plateauBest = 0.12f;
+		state.plateauWait = 2;
+		state.plateauCooldown = 1;
+		state.earlyStoppingWait = 4;
+		state.write(checkpoint);
+		TrainingState read = TrainingState.read(checkpoint);
+		assertEquals(state.seed, read.seed);
+		assertEquals(state.batchSize, read.batchSize);
+		assertEquals(state.patchShape, read.patchShape);
+		assertEquals(state.mean, read.mean, 0);
+		assertEquals(state.stdDev, read.stdDev, 0);
+		assertEquals(state.epoch, read.epoch);
+		assertEquals(state.stepsFinished, read.stepsFinished);
+		assertEquals(state.shuffles, read.shuffles);
+		assertEquals(state.batchStep, read.batchStep);
+		assertEquals(state.batchIndex, read.batchIndex);
+		// floats are restored exactly, so the resumed training continues with the same values
+		assertEquals(state.learningRate, read.learningRate, 0);
+		assertEquals(state.lastValidationStep, read.lastValidationStep);
+		assertEquals(state.validationLoss, read.validationLoss, 0);
+		assertTrue(read.validationPending);
+		assertEquals(state.plateauBest, read.plateauBest, 0);
+		assertEquals(state.plateauWait, read.plateauWait);
+		assertEquals(state.plateauCooldown, read.plateauCooldown);
+		assertEquals(Float.MAX_VALUE, read.earlyStoppingBest, 0);
+		assertEquals(state.earlyStoppingWait, read.earlyStoppingWait);
+	}
+
+}
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.train;
+
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ValueManipulatorTest {
+
+	private static final int[] dims2D = {20, 13};
+	private static final int[] dims3D = {9, 8, 7};
+
+	@Test
+	public void testWithoutCenterPixel() {
+		for (int[] dims : new int[][]{dims2D, dims3D}) {
+			float[] patch = ramp(dims);
+			SplittableRandom random = new SplittableRandom(42);
+			for (int index = 0; index < patch.length; index++) {
+				assertNotEquals(index, (int) ValueManipulator.UNIFORM_WITHOUT_CP.manipulate(patch, dims, index, 2, random));
+				assertNotEquals(index, (int) ValueManipulator.NORMAL_WITHOUT_CP.manipulate(patch, dims, index, 2, random));
+			}
+		}
+	}
+
+	@Test
+	public void testUniformNeighborhood() {
+		for (int[] dims : new int[][]{dims2D, dims3D}) {
+			float[] patch = ramp(dims);
+			SplittableRandom random = new SplittableRandom(42);
+			for (int index = 0; index < patch.length; index++) {
+				int neighbor = (int) ValueManipulator.UNIFORM_WITH_CP.manipulate(patch, dims, index, 2, random);
+				int stride = 1;
+				for (int d = 0; d < dims.length; d++) {
+					int pos = (index / stride) % dims[d];
+					int neighborPos = (neighbor / stride) % dims[d];
+					// the neighborhood is shifted into the patch at the borders
+					assertTrue(Math.abs(pos - neighborPos) <= 4);
+					if (pos >= 2 && pos < dims[d] - 2) assertTrue(Math.abs(pos - neighborPos) <= 2);
+					stride *= dims[d];
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testUniformWindow() {
+		// the positions picked by the original implementation for radius 5 in a 32 x 32 patch
+		int[] dims = {32, 32};
+		float[] patch = ramp(dims);
+		int[][] centers = {{16, 16}, {0, 0}, {31, 31}, {2, 29}};
+		int[][] windows = {{11, 21, 11, 21}, {0, 10, 0, 10}, {21, 31, 21, 31}, {0, 10, 21, 31}};
+		SplittableRandom random = new SplittableRandom(42);
+		for (int c = 0; c < centers.length; c++) {
+			int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE};
+			int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE};
+			for (int i = 0; i < 10000; i++) {
+				int neighbor = (int) ValueManipulator.UNIFORM_WITH_CP.manipulate(patch, dims, centers[c][1] * 32 + centers[c][0], 5, random);
+				int[] pos = {neighbor % 32, neighbor / 32};
+				for (int d = 0; d < 2; d++) {
+					min[d] = Math.min(min[d], pos[d]);
+					max[d] = Math.max(max[d], pos[d]);
+				}
+			}
+			assertArrayEquals(windows[c], new int[]{min[0], max[0], min[1], max[1]});
+		}
+	}
+
+	@Test
+	public void testMeanAndMedian() {
+		int[] dims = {5, 5};
+		float[] patch = new float[25];
+		patch[12] = 100;
+		patch[0] = 8;
+		SplittableRandom random = new SplittableRandom(42);
+		// the 3x3 neighborhood of the center contains only zeros
+		assertEquals(0, ValueManipulator.MEAN.manipulate(patch, dims, 12, 1, random), 0);
+		assertEquals(0, ValueManipulator.MEDIAN.manipulate(patch, dims, 12, 1, random), 0);
+		// the neighborhood of the corner is shifted to [0, 2] x [0, 2] and contains the center pixel
+		assertEquals(100f / 8, ValueManipulator.MEAN.manipulate(patch, dims, 0, 1, random), 1e-5);
+		assertEquals(0, ValueManipulator.MEDIAN.manipulate(patch, dims, 0, 1, random), 0);
+	}
+
+	@Test
+	public void testNames() {
+		for (ValueManipulator manipulator : ValueManipulator.values()) {
+			assertEquals(manipulator, ValueManipulator.fromName(manipulator.getName()));
+		}
+	}
+
+	private static float[] ramp(int[] dims) {
+		int size = 1;
+		for (int dim : dims) size *= dim;
+		float[] patch = new float[size];
+		for (int i = 0; i < size; i++) {
+			patch[i] = i;
+		}
+		return patch;
+	}
+
+}
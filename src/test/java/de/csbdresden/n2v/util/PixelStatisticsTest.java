@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PixelStatisticsTest {
+
+	@Test
+	public void testMeanAndStdDev() {
+		// values going from 0.5 to 99.5
+		PixelStatistics statistics = new PixelStatistics();
+		for (int i = 0; i < 100; i++) {
+			statistics.add(i + 0.5);
+		}
+		assertEquals(100, statistics.getCount());
+		assertEquals(50.0, statistics.getMean(), 0.00001);
+		assertEquals(Math.sqrt(841.66666), statistics.getStdDev(), 0.00001);
+	}
+
+	@Test
+	public void testMerge() {
+		Random random = new Random(42);
+		PixelStatistics all = new PixelStatistics();
+		PixelStatistics merged = new PixelStatistics();
+		for (int part = 0; part < 5; part++) {
+			PixelStatistics partial = new PixelStatistics();
+			for (int i = 0; i < 1000 * part; i++) {
+				double value = 1000 + random.nextGaussian() * 3;
+				all.add(value);
+				partial.add(value);
+			}
+			merged.add(partial);
+		}
+		assertEquals(all.getCount(), merged.getCount());
+		assertEquals(all.getMean(), merged.getMean(), 0.000001);
+		assertEquals(all.getStdDev(), merged.getStdDev(), 0.000001);
+		assertEquals(3, merged.getStdDev(), 0.1);
+	}
+
+}
@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * N2V plugin
+ * %%
+ * Copyright (C) 2019 - 2020 Center for Systems Biology Dresden
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.n2v.util;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuantileSketchTest {
+
+	@Test
+	public void testSmall() {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 100; i > 0; i--) {
+			sketch.add(i);
+		}
+		assertEquals(100, sketch.getCount());
+		assertEquals(1, sketch.quantile(0), 0);
+		assertEquals(50, sketch.quantile(0.5), 0);
+		assertEquals(100, sketch.quantile(1), 0);
+	}
+
+	@Test
+	public void testQuantiles() {
+		Random random = new Random(42);
+		QuantileSketch sketch = new QuantileSketch();
+		QuantileSketch merged = new QuantileSketch();
+		int n = 1000000;
+		for (int part = 0; part < 10; part++) {
+			QuantileSketch partial = new QuantileSketch();
+			for (int i = 0; i < n / 10; i++) {
+				float value = random.nextFloat();
+				sketch.add(value);
+				partial.add(value);
+			}
+			merged.add(partial);
+		}
+		assertEquals(n, merged.getCount());
+		for (double q : new double[]{0.01, 0.5, 0.998}) {
+			assertEquals(q, sketch.quantile(q), 0.002);
+			assertEquals(q, merged.quantile(q), 0.002);
+		}
+	}
+
+	@Test
+	public void testParallelImages() {
+		Random random = new Random(42);
+		List<RandomAccessibleInterval<FloatType>> imgs = new ArrayList<>();
+		QuantileSketch sequential = new QuantileSketch();
+		for (int i = 0; i < 200; i++) {
+			float[] values = new float[64 * 64];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = random.nextFloat();
+				sequential.add(values[j]);
+			}
+			imgs.add(ArrayImgs.floats(values, 64, 64));
+		}
+		QuantileSketch parallel = QuantileSketch.of(imgs);
+		QuantileSketch again = QuantileSketch.of(imgs);
+		assertEquals(sequential.getCount(), parallel.getCount());
+		for (double q : new double[]{0.01, 0.5, 0.998}) {
+			assertEquals(sequential.quantile(q), parallel.quantile(q), 0.002);
+			assertEquals(parallel.quantile(q), again.quantile(q), 0);
+		}
+	}
+
+}